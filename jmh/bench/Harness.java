@@ -0,0 +1,46 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Reaches Main.Bench, which builds what the benchmarks measure. Main is in the unnamed package, which code in
+ * a package can't name, so this looks it up by reflection once per trial; the measured calls are plain
+ * DoubleSupplier calls.
+ */
+final class Harness {
+  private Harness() {
+  }
+
+  /**
+   * Main.Bench.cases().get(name).
+   */
+  static String source(String name) {
+    String ret = (String) ((Map<?, ?>) call("cases", new Class<?>[0])).get(name);
+    if (ret == null)
+      throw new IllegalArgumentException("No case " + name + ".");
+    return ret;
+  }
+
+  /**
+   * Main.Bench.method(arg), a map of operations by name.
+   */
+  @SuppressWarnings("unchecked")
+  static Map<String, DoubleSupplier> operations(String method, Class<?> type, Object arg) {
+    return (Map<String, DoubleSupplier>) call(method, new Class<?>[]{type}, arg);
+  }
+
+  private static Object call(String method, Class<?>[] types, Object... args) {
+    try {
+      Method m = Class.forName("Main$Bench").getDeclaredMethod(method, types);
+      m.setAccessible(true);
+      return m.invoke(null, args);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException("Main.Bench." + method + " failed.", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Main.Bench." + method + " is missing.", e);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One input of a balanced sum changed per operation: re-evaluating the tree or the compiled formula, against
+ * recomputing only the changed path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncrementalBenchmark {
+  @Param({"1024", "32768"})
+  public int variables;
+
+  private DoubleSupplier tree, compiled, increment;
+
+  @Setup
+  public void setup() {
+    Map<String, DoubleSupplier> ops = Harness.operations("incremental", int.class, variables);
+    tree = ops.get("tree");
+    compiled = ops.get("compiled");
+    increment = ops.get("increment");
+  }
+
+  @Benchmark
+  public double tree() {
+    return tree.getAsDouble();
+  }
+
+  @Benchmark
+  public double compiled() {
+    return compiled.getAsDouble();
+  }
+
+  @Benchmark
+  public double increment() {
+    return increment.getAsDouble();
+  }
+}
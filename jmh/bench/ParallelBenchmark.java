@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sequential against ForkJoinPool evaluation of balanced trees, to find the size where splitting starts to pay.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelBenchmark {
+  @Param({"1024", "16384", "262144", "4194304"})
+  public int nodes;
+
+  private DoubleSupplier sequential, parallel;
+
+  @Setup
+  public void setup() {
+    Map<String, DoubleSupplier> ops = Harness.operations("parallel", int.class, nodes);
+    sequential = ops.get("sequential");
+    parallel = ops.get("parallel");
+  }
+
+  @Benchmark
+  public double sequential() {
+    return sequential.getAsDouble();
+  }
+
+  @Benchmark
+  public double parallel() {
+    return parallel.getAsDouble();
+  }
+}
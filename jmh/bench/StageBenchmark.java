@@ -0,0 +1,117 @@
+package bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of each stage, from lexing to every way of evaluating, on inputs of growing size and nesting.
+ * Run with -prof gc for bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+  @Param({"tokens-10", "tokens-1k", "tokens-100k", "parens-1k", "unary-10k", "money-1k", "repeated-1k"})
+  public String input;
+
+  private DoubleSupplier lex, parse, arena, evaluate, compiled, dag, dagCompiled, postfix, backendDouble,
+      backendDecimal, backendRational, print, update;
+
+  @Setup
+  public void setup() {
+    Map<String, DoubleSupplier> stages = Harness.operations("stages", String.class, Harness.source(input));
+    lex = stages.get("lex");
+    parse = stages.get("parse");
+    arena = stages.get("arena");
+    evaluate = stages.get("evaluate");
+    compiled = stages.get("compiled");
+    dag = stages.get("dag");
+    dagCompiled = stages.get("dag-comp");
+    postfix = stages.get("postfix");
+    backendDouble = stages.get("double");
+    backendDecimal = stages.get("decimal");
+    backendRational = stages.get("rational");
+    print = stages.get("toString");
+    update = stages.get("update");
+  }
+
+  @Benchmark
+  public double lex() {
+    return lex.getAsDouble();
+  }
+
+  @Benchmark
+  public double parse() {
+    return parse.getAsDouble();
+  }
+
+  @Benchmark
+  public double arena() {
+    return arena.getAsDouble();
+  }
+
+  @Benchmark
+  public double evaluate() {
+    return evaluate.getAsDouble();
+  }
+
+  @Benchmark
+  public double compiled() {
+    return compiled.getAsDouble();
+  }
+
+  @Benchmark
+  public double dag() {
+    return dag.getAsDouble();
+  }
+
+  @Benchmark
+  public double dagCompiled() {
+    return dagCompiled.getAsDouble();
+  }
+
+  @Benchmark
+  public double postfix() {
+    return postfix.getAsDouble();
+  }
+
+  @Benchmark
+  public double backendDouble() {
+    return backendDouble.getAsDouble();
+  }
+
+  @Benchmark
+  public double backendDecimal() {
+    return backendDecimal.getAsDouble();
+  }
+
+  @Benchmark
+  public double backendRational() {
+    return backendRational.getAsDouble();
+  }
+
+  @Benchmark
+  public double print() {
+    return print.getAsDouble();
+  }
+
+  @Benchmark
+  public double update() {
+    return update.getAsDouble();
+  }
+}
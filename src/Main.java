@@ -2,14 +2,69 @@
 // Period.
 // "Simple" Calculator
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleFunction;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Main {
   public static final boolean PRINT_DEBUG = false;
-  public static boolean EXPLICIT_PARENS = false;
+  // Replace with a MetricsRecorder to see what compile() and Formula.eval() are doing.
+  static volatile Metrics metrics = Metrics.NOOP;
 
   static class StringWrapper {
     String s;
@@ -42,24 +97,341 @@ public class Main {
     }
   }
 
+  /**
+   * Output of the lexer: the whole input is scanned once into parallel arrays
+   * (type, offset, length, pre-parsed value). Read back with a cursor, like StringWrapper.
+   */
+  static class Tokens {
+    static final byte NUMERAL = 0;
+    static final byte CONSTANT = 1;
+    static final byte OPERATOR = 2;
+    static final byte OPEN = 3;
+    static final byte CLOSE = 4;
+    static final byte ERROR = 5;
+    static final byte END = 6;
+    static final byte VARIABLE = 7;
+    // A span parsed earlier, standing in as a single token for parsed[symbol].
+    static final byte PARSED = 8;
+    static final byte COMMA = 9;
+    // symbol of an OPEN token once the parser has read it as the start of a call's arguments, not a group.
+    static final int CALL = 1;
+    private static final Evaluable[] NONE = new Evaluable[0];
+    private static final int[] NO_SPANS = new int[0];
+
+    // s, limits and operators change only when relex() reuses these arrays for another input.
+    String s;
+    byte[] type = new byte[16];
+    int[] offset = new int[16];
+    int[] length = new int[16];
+    double[] value = new double[16];
+    int[] symbol = new int[16];
+    int size = 0;
+    String error;
+    final Variables variables;
+    final Evaluable[] parsed;
+    Limits limits;
+    // The operators as registered when lexing started; symbols index into operators.symbols.
+    Operator.Table operators = Operator.table();
+    int i = 0;
+    private int[] stack = new int[8];
+    private int depth = 0;
+
+    private Tokens(String s, Variables variables, Evaluable[] parsed, Limits limits) {
+      this.s = s;
+      this.variables = variables;
+      this.parsed = parsed;
+      this.limits = limits;
+    }
+
+    static Tokens lex(String s) {
+      return lex(s, 0);
+    }
+    static Tokens lex(String s, int from) {
+      return lex(s, from, s.length(), new Variables(), NO_SPANS, NONE, Limits.DEFAULT);
+    }
+    static Tokens lex(String s, Limits limits) {
+      return lex(s, 0, s.length(), new Variables(), NO_SPANS, NONE, limits);
+    }
+    /**
+     * Lexes s[from, to), adding variable names to {@code variables}. The text from spans[2k] to spans[2k + 1]
+     * (sorted, each starting at a '(') is skipped and becomes one PARSED token for parsed[k].
+     */
+    static Tokens lex(String s, int from, int to, Variables variables, int[] spans, Evaluable[] parsed, Limits limits) {
+      return new Tokens(s, variables, parsed, limits).scan(from, to, spans);
+    }
+    /**
+     * Lexes all of s into these same arrays, dropping the tokens they held, so that a loop parsing many inputs
+     * doesn't allocate them again for each. Only for parsers that don't make Variable nodes, which would add
+     * every input's names to the same Variables.
+     */
+    Tokens relex(String s, Limits limits) {
+      this.s = s;
+      this.limits = limits;
+      operators = Operator.table();
+      size = 0;
+      i = 0;
+      depth = 0;
+      error = null;
+      return scan(0, s.length(), NO_SPANS);
+    }
+
+    private Tokens scan(int from, int to, int[] spans) {
+      int i = from;
+      int n = to;
+      int k = 0;
+      while (true) {
+        while (i < n && isWhitespace(s.charAt(i)))
+          i++;
+        if (i >= n)
+          break;
+        if (k < parsed.length && i == spans[2 * k]) {
+          add(PARSED, i, spans[2 * k + 1] - i, 0, k);
+          i = spans[2 * k + 1];
+          k++;
+          continue;
+        }
+        char c = s.charAt(i);
+        if (c == '(' || c == ')' || c == ',') {
+          add(c == '(' ? OPEN : c == ')' ? CLOSE : COMMA, i, 1, 0, -1);
+          i++;
+          continue;
+        }
+        // Operators win over constants and numerals, same as the old readMore order.
+        int sym = operators.trie.match(s, i);
+        if (sym >= 0) {
+          int len = operators.symbols[sym].length();
+          // A word operator running into more letters is the start of a name ("minute", "absx", "max_rate"),
+          // unless the rest is operators and constants as well ("2modpi").
+          int end = continuesName(s, i + len - 1, n) ? Variable.scan(s, i) : i;
+          if (end > i && !onlyTokens(s, i, end)) {
+            add(VARIABLE, i, end - i, 0, -1);
+            i = end;
+            continue;
+          }
+          add(OPERATOR, i, len, 0, sym);
+          i += len;
+          continue;
+        }
+        boolean pi = s.regionMatches(true, i, "pi", 0, 2);
+        int end = Variable.scan(s, i);
+        // Likewise a constant running into more letters starts a name ("epsilon", "pivot"), unless the rest is
+        // operators and constants too ("pimode").
+        if (pi && (end == i + 2 || onlyTokens(s, i, end))) {
+          add(CONSTANT, i, 2, Math.PI, -1);
+          i += 2;
+          continue;
+        }
+        if ((c == 'e' || c == 'E') && (end == i + 1 || onlyTokens(s, i, end))) {
+          add(CONSTANT, i, 1, Math.E, -1);
+          i += 1;
+          continue;
+        }
+        if (end > i) {
+          add(VARIABLE, i, end - i, 0, -1);
+          i = end;
+          continue;
+        }
+        try {
+          end = Numeral.scan(s, i);
+        } catch (ParseFailedException e) {
+          // Only an error if the parser actually gets this far.
+          error = e.getMessage();
+          add(ERROR, i, 0, 0, -1);
+          break;
+        }
+        if (end < 0) {
+          error = "Unexpected character '" + c + "' at " + i + ".";
+          add(ERROR, i, 0, 0, -1);
+          break;
+        }
+        add(NUMERAL, i, end - i, Numeral.valueOf(s, i, end), -1);
+        i = end;
+      }
+      add(END, i, 0, 0, -1);
+      return this;
+    }
+
+    /**
+     * Whether s[from, to), letters, digits and underscores, lexes into operators, constants and digits alone.
+     */
+    private boolean onlyTokens(String s, int from, int to) {
+      for (int j = from; j < to; ) {
+        int sym = operators.trie.match(s, j);
+        if (sym >= 0 && j + operators.symbols[sym].length() <= to)
+          j += operators.symbols[sym].length();
+        else if (j + 2 <= to && s.regionMatches(true, j, "pi", 0, 2))
+          j += 2;
+        else if (s.charAt(j) == 'e' || s.charAt(j) == 'E' || Character.isDigit(s.charAt(j)))
+          j++;
+        else
+          return false;
+      }
+      return true;
+    }
+    private static boolean continuesName(String s, int last, int n) {
+      if (last + 1 >= n || !Character.isLetterOrDigit(s.charAt(last)))
+        return false;
+      char next = s.charAt(last + 1);
+      return Character.isLetter(next) || next == '_';
+    }
+
+    private void add(byte type, int offset, int length, double value, int symbol) {
+      if (size >= limits.maxTokens && type != END)
+        throw new ParseFailedException("Expression has more than " + limits.maxTokens + " tokens.");
+      if (size == this.type.length) {
+        int cap = size * 2;
+        this.type = Arrays.copyOf(this.type, cap);
+        this.offset = Arrays.copyOf(this.offset, cap);
+        this.length = Arrays.copyOf(this.length, cap);
+        this.value = Arrays.copyOf(this.value, cap);
+        this.symbol = Arrays.copyOf(this.symbol, cap);
+      }
+      this.type[size] = type;
+      this.offset[size] = offset;
+      this.length[size] = length;
+      this.value[size] = value;
+      this.symbol[size] = symbol;
+      size++;
+    }
+
+    byte type() {
+      return type[i];
+    }
+    /**
+     * Offset just past the last consumed token, or where lexing started if nothing was consumed.
+     */
+    int consumed() {
+      return i == 0 ? offset[0] : offset[i - 1] + length[i - 1];
+    }
+    void mark() {
+      if (depth == stack.length)
+        stack = Arrays.copyOf(stack, depth * 2);
+      stack[depth++] = i;
+    }
+    void unmark() {
+      depth--;
+    }
+    void restore() {
+      i = stack[--depth];
+    }
+    /**
+     * All tokens, operators quoted: "1, "+", 2".
+     */
+    String describe() {
+      StringBuilder ret = new StringBuilder();
+      for (int k = 0; k < size && type[k] != END && type[k] != ERROR; k++) {
+        if (k > 0)
+          ret.append(", ");
+        if (type[k] == OPERATOR)
+          ret.append('"').append(operators.symbols[symbol[k]]).append('"');
+        else
+          ret.append(s, offset[k], offset[k] + length[k]);
+      }
+      return ret.toString();
+    }
+    @Override
+    public String toString() {
+      return s.substring(offset[i]);
+    }
+  }
+
+  /**
+   * Bounds on the size of an input, so that runaway machine-generated text fails with a ParseFailedException
+   * instead of exhausting memory. Depth counts nested operands: an open paren, a unary operator or a binary
+   * operator waiting for its right-hand side each add one.
+   */
+  public static class Limits {
+    public static final Limits DEFAULT = new Limits(1 << 24, 1 << 20);
+    final int maxTokens;
+    final int maxDepth;
+
+    public Limits(int maxTokens, int maxDepth) {
+      this.maxTokens = maxTokens;
+      this.maxDepth = maxDepth;
+    }
+  }
+
+  /**
+   * Variable names of one parsed expression, in order of first appearance, and the values its Variables read.
+   */
+  static class Variables {
+    final List<String> names = new ArrayList<>();
+    double[] values = new double[0];
+    private final Map<String, Integer> index = new HashMap<>();
+
+    int indexOf(String name) {
+      Integer ret = index.get(name);
+      if (ret == null) {
+        ret = names.size();
+        names.add(name);
+        index.put(name, ret);
+        values = Arrays.copyOf(values, names.size());
+        values[ret] = Double.NaN;
+      }
+      return ret;
+    }
+
+    /**
+     * The index of name, or -1 if it hasn't been added.
+     */
+    int find(String name) {
+      return index.getOrDefault(name, -1);
+    }
+
+    /**
+     * Removes the variable at {@code i} by moving the last one into its place. Variable nodes still holding the
+     * last index are the caller's to renumber.
+     */
+    void remove(int i) {
+      int last = names.size() - 1;
+      index.remove(names.get(i));
+      if (i != last) {
+        names.set(i, names.get(last));
+        values[i] = values[last];
+        index.put(names.get(i), i);
+      }
+      names.remove(last);
+      values = Arrays.copyOf(values, last);
+    }
+  }
+
   interface Evaluable {
     Evaluable parse(StringWrapper input);
-    Double evaluate();
+    Evaluable parse(Tokens input);
+    /**
+     * The value, without boxing it.
+     */
+    double evalAsDouble();
+    default Double evaluate() {
+      return evalAsDouble();
+    }
+    /**
+     * Appends this to out. With explicitParens every term and operation is wrapped in parentheses.
+     */
+    void print(StringBuilder out, boolean explicitParens);
+    default String toString(boolean explicitParens) {
+      StringBuilder ret = new StringBuilder();
+      print(ret, explicitParens);
+      return ret.toString();
+    }
     String toString();
   }
 
   public static class ParseFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public ParseFailedException(String s) {
       super(s);
     }
   }
 
   static class Numeral implements Evaluable {
-    String integerSign;
-    String integer;
-    String decimal;
-    String exponentiationSign;
-    String exponentiation;
+    // The literal is the span [start, end) of source, e.g. "123.456E+789", without its sign.
+    String source;
+    int start;
+    int end;
+    boolean negative;
+    double value;
 
     public Numeral parse(StringWrapper input) {
       input.mark();
@@ -67,105 +439,270 @@ public class Main {
       while (isWhitespace(curr))
         curr = input.next();
 
-      // Integer section "-123" of "-123.456E+789"
-      integerSign = "+";
-      if (curr == '+' || curr == '-') {
-        integerSign = curr.toString();
-        curr = input.next();
+      // Sign "-" of "-123.456E+789"
+      negative = false;
+      if (curr == '+' || curr == '-')
+        negative = curr == '-';
+      else
+        input.push();
+
+      int start = input.i;
+      int end;
+      try {
+        end = scan(input.s, start);
+      } catch (ParseFailedException e) {
+        input.restore();
+        throw e;
       }
-      while ('0' <= curr && curr <= '9') {
-        if (integer == null)
-          integer = "";
-        integer += curr;
-        curr = input.next();
+      if (end < 0) {
+        // Nothing found
+        input.restore();
+        return null;
       }
+      input.i = end;
+      input.unmark();
+      source = input.s;
+      this.start = start;
+      this.end = end;
+      value = negative ? -valueOf(source, start, end) : valueOf(source, start, end);
+      return this;
+    }
+    public Numeral parse(Tokens input) {
+      if (input.type() != Tokens.NUMERAL)
+        return null;
+      source = input.s;
+      start = input.offset[input.i];
+      end = start + input.length[input.i];
+      value = input.value[input.i];
+      input.i++;
+      return this;
+    }
+
+    /**
+     * Scans an unsigned numeral "123.456E+789" starting at {@code start}. Returns the offset just past it,
+     * or -1 if it doesn't look like a number at all.
+     */
+    static int scan(String s, int start) {
+      int i = start;
+      // Integer section "123" of "123.456E+789"
+      while (isDigit(charAt(s, i)))
+        i++;
+      boolean integer = i > start;
 
       // No more sections?
-      if (curr != '.' && curr != 'e' && curr != 'E') {
-        if (integer != null) {
-          input.push();
-          input.unmark();
-          return this;
-        } else {
-          // Nothing found
-          input.restore();
-          return null;
-        }
-      }
+      char curr = charAt(s, i);
+      if (curr != '.' && curr != 'e' && curr != 'E')
+        return integer ? i : -1;
 
       // Decimal section ".456" of "123.456E+789"
+      boolean decimal = false;
       if (curr == '.') {
-        curr = input.next();
-        while ('0' <= curr && curr <= '9') {
-          if (decimal == null)
-            decimal = "";
-          decimal += curr;
-          curr = input.next();
-        }
+        int from = ++i;
+        while (isDigit(charAt(s, i)))
+          i++;
+        decimal = i > from;
       }
       // Invalid reading
-      if (integer == null && decimal == null) {
-        input.restore();
+      if (!integer && !decimal)
         throw new ParseFailedException("Found decimal or exponentiation but no actual numeral.");
-      }
       // No more sections
-      if (curr != 'e' && curr != 'E') {
-        input.push();
-        input.unmark();
-        return this;
-      }
+      curr = charAt(s, i);
+      if (curr != 'e' && curr != 'E')
+        return i;
 
       // Exponentiation section "E+789" of "123.456E+789"
-      curr = input.next();
-      exponentiationSign = "+";
-      if (curr == '+' || curr == '-') {
-        exponentiationSign = curr.toString();
-        curr = input.next();
+      curr = charAt(s, ++i);
+      if (curr == '+' || curr == '-')
+        i++;
+      int from = i;
+      while (isDigit(charAt(s, i)))
+        i++;
+      if (i == from)
+        throw new ParseFailedException("Found exponentiation marker, but no numeral after.");
+      return i;
+    }
+
+    /**
+     * Correctly rounded value of an unsigned numeral previously accepted by {@link #scan}, read straight from
+     * the source. Up to 19 significant digits go through Clinger's exact fast path or Eisel-Lemire; anything
+     * longer, or the rare case Eisel-Lemire can't decide, falls back to Double.parseDouble.
+     */
+    static double valueOf(String s, int start, int end) {
+      long w = 0;
+      int digits = 0;
+      int scale = 0;
+      boolean truncated = false;
+      int i = start;
+      for (char c; i < end && isDigit(c = s.charAt(i)); i++) {
+        if (digits < 19) {
+          w = w * 10 + (c - '0');
+          if (w != 0)
+            digits++;
+        } else {
+          truncated |= c != '0';
+          scale++;
+        }
       }
-      while ('0' <= curr && curr <= '9') {
-        if (exponentiation == null)
-          exponentiation = "";
-        exponentiation += curr;
-        curr = input.next();
+      if (i < end && s.charAt(i) == '.') {
+        for (char c; ++i < end && isDigit(c = s.charAt(i)); ) {
+          if (digits < 19) {
+            w = w * 10 + (c - '0');
+            if (w != 0)
+              digits++;
+            scale--;
+          } else {
+            truncated |= c != '0';
+          }
+        }
+      }
+      if (i < end) {
+        // Exponent; anything past 99999 is zero or infinity either way.
+        boolean negativeExp = s.charAt(++i) == '-';
+        if (s.charAt(i) == '+' || s.charAt(i) == '-')
+          i++;
+        int exp = 0;
+        for (; i < end; i++)
+          exp = Math.min(exp * 10 + (s.charAt(i) - '0'), 99999);
+        scale += negativeExp ? -exp : exp;
       }
 
-      if (exponentiation == null) {
-        input.restore();
-        throw new ParseFailedException("Found exponentiation marker, but no numeral after.");
+      if (w == 0)
+        return 0;
+      if (!truncated) {
+        if (w >= 0 && w <= (1L << 53) && scale >= -22 && scale <= 22)
+          return scale < 0 ? w / EXACT_POWERS[-scale] : w * EXACT_POWERS[scale];
+        if (scale < -342)
+          return 0;
+        if (scale > 308)
+          return Double.POSITIVE_INFINITY;
+        long bits = eiselLemire(w, scale);
+        if (bits >= 0)
+          return Double.longBitsToDouble(bits);
       }
-      input.push();
-      input.unmark();
-      return this;
+      return Double.parseDouble(s.substring(start, end));
     }
-    public Double evaluate() {
-      String retStr = integerSign + (integer == null ? "0" : integer);
-      if (decimal != null)
-        retStr += "." + decimal;
-      double retDbl = Double.parseDouble(retStr);
-      if (exponentiation != null) {
-        int pow = Integer.parseInt(exponentiation);
-        double factor = exponentiationSign.equals("-") ? .1 : 10;
-        while (pow-- > 0)
-          retDbl *= factor;
-      }
-      return retDbl;
+
+    private static final double[] EXACT_POWERS = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // 5^q for q in [-342, 308] as 128-bit fractions (high, low), normalized so the top bit is set.
+    private static final long[] POWERS_OF_FIVE = new long[2 * (308 + 342 + 1)];
+    static {
+      BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+      for (int q = -342; q <= 308; q++) {
+        BigInteger c;
+        if (q < 0) {
+          BigInteger power = BigInteger.valueOf(5).pow(-q);
+          int z = power.bitLength();
+          int b = q >= -27 ? z + 127 : 2 * z + 128;
+          c = BigInteger.ONE.shiftLeft(b).divide(power).add(BigInteger.ONE);
+        } else {
+          c = BigInteger.valueOf(5).pow(q);
+        }
+        c = c.bitLength() > 128 ? c.shiftRight(c.bitLength() - 128) : c.shiftLeft(128 - c.bitLength());
+        POWERS_OF_FIVE[2 * (q + 342)] = c.shiftRight(64).longValue();
+        POWERS_OF_FIVE[2 * (q + 342) + 1] = c.and(mask).longValue();
+      }
+    }
+
+    /**
+     * Bits of the double nearest to w * 10^q, or -1 if undecided. w must be exact and non-zero,
+     * q in [-342, 308]. After Lemire, "Number Parsing at a Gigabyte per Second".
+     */
+    static long eiselLemire(long w, int q) {
+      int lz = Long.numberOfLeadingZeros(w);
+      w <<= lz;
+      int index = 2 * (q + 342);
+      long high = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index]);
+      long low = w * POWERS_OF_FIVE[index];
+      if ((high & 0x1FF) == 0x1FF) {
+        long second = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index + 1]);
+        low += second;
+        if (Long.compareUnsigned(second, low) > 0)
+          high++;
+      }
+      int upper = (int) (high >>> 63);
+      int shift = upper + 9;
+      long mantissa = high >>> shift;
+      int power2 = ((217706 * q) >> 16) + 63 + upper - lz + 1023;
+      if (power2 <= 0) {
+        // Subnormal
+        if (-power2 + 1 >= 64)
+          return 0;
+        mantissa >>>= -power2 + 1;
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        power2 = mantissa < (1L << 52) ? 0 : 1;
+        return (long) power2 << 52 | mantissa & ((1L << 52) - 1);
+      }
+      // Exactly halfway between two doubles: round to even.
+      if (Long.compareUnsigned(low, 1) <= 0 && q >= -4 && q <= 23 && (mantissa & 3) == 1 && mantissa << shift == high)
+        mantissa &= ~1L;
+      mantissa += mantissa & 1;
+      mantissa >>>= 1;
+      if (mantissa >= (2L << 52)) {
+        mantissa = 1L << 52;
+        power2++;
+      }
+      mantissa &= ~(1L << 52);
+      if (power2 >= 0x7FF)
+        return 0x7FFL << 52;
+      return (long) power2 << 52 | mantissa;
+    }
+    private static long unsignedMultiplyHigh(long a, long b) {
+      return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    private static char charAt(String s, int i) {
+      return i < s.length() ? s.charAt(i) : '\0';
+    }
+    private static boolean isDigit(char c) {
+      return '0' <= c && c <= '9';
+    }
+
+    public double evalAsDouble() {
+      return value;
+    }
+    /**
+     * The exact value written, of which value is the nearest double.
+     */
+    BigDecimal decimal() {
+      try {
+        BigDecimal ret = new BigDecimal(source.substring(start, end));
+        return negative ? ret.negate() : ret;
+      } catch (NumberFormatException e) {
+        throw new ArithmeticException("Numeral " + source.substring(start, end) + " is out of range.");
+      }
+    }
+    public void print(StringBuilder out, boolean explicitParens) {
+      if (explicitParens)
+        out.append('(');
+      if (negative)
+        out.append('-');
+      int i = start;
+      while (i < end && isDigit(source.charAt(i)))
+        i++;
+      out.append(source, start, i);
+      if (i < end && source.charAt(i) == '.') {
+        int from = ++i;
+        while (i < end && isDigit(source.charAt(i)))
+          i++;
+        if (i > from)
+          out.append('.').append(source, from, i);
+      }
+      if (i < end) {
+        out.append('E');
+        if (source.charAt(++i) == '-')
+          out.append('-');
+        if (source.charAt(i) == '+' || source.charAt(i) == '-')
+          i++;
+        out.append(source, i, end);
+      }
+      if (explicitParens)
+        out.append(')');
     }
     @Override
     public String toString() {
-      String ret = "";
-      if (!integerSign.equals("+"))
-        ret = integerSign;
-      if (integer != null)
-        ret += integer;
-      if (decimal != null)
-        ret += "." + decimal;
-      if (exponentiation != null) {
-        ret += "E";
-        if (!exponentiationSign.equals("+"))
-          ret += exponentiationSign;
-        ret += exponentiation;
-      }
-      return EXPLICIT_PARENS?"("+ret+")":ret;
+      return toString(false);
     }
 
     public static void test() {
@@ -176,7 +713,7 @@ public class Main {
       assert new Numeral().parse(new StringWrapper("55E-2")).evaluate() == .55;
       assert new Numeral().parse(new StringWrapper("55e+2")).evaluate() == 5500;
       assert new Numeral().parse(new StringWrapper("123.987")).evaluate() == 123.987;
-      assert Math.abs(new Numeral().parse(new StringWrapper("1.23456e5")).evaluate() / 1.23456e5 - 1) < 1e-5;
+      assert new Numeral().parse(new StringWrapper("1.23456e5")).evaluate() == 1.23456e5;
       // Doesn't look like a number (other symbol) should return null
       assert new Numeral().parse(new StringWrapper("()")) == null;
       assert new Numeral().parse(new StringWrapper("/ 5")) == null;
@@ -194,11 +731,22 @@ public class Main {
       assert new Numeral().parse(new StringWrapper("123;")).evaluate() == 123;
       assert new Numeral().parse(new StringWrapper(".123+456")).evaluate() == .123;
       assert new Numeral().parse(new StringWrapper(".123.456")).evaluate() == .123;
+      assert new Numeral().parse(new StringWrapper("-1e300")).evaluate() == -1e300;
+      assert new Numeral().parse(new StringWrapper("2.4e-324")).evaluate() == 0;
+      assert new Numeral().parse(new StringWrapper("1e99999999999")).evaluate() == Double.POSITIVE_INFINITY;
+      assert new Numeral().parse(new StringWrapper("-0.12e+3")).toString().equals("-0.12E3");
+      // Bit-exact against the JDK on random literals.
+      Random random = new Random(11);
+      for (int n = 0; n < 20_000; n++) {
+        String s = random.nextInt(4) == 0 ? Long.toString(random.nextLong() >>> random.nextInt(64))
+            : Long.toUnsignedString(random.nextLong() >>> random.nextInt(64)) + "." + random.nextInt(1000) + "e" + (random.nextInt(700) - 350);
+        assert Double.compare(new Numeral().parse(new StringWrapper(s)).evaluate(), Double.parseDouble(s)) == 0 : s;
+      }
     }
   }
 
   static class Constant implements Evaluable {
-    Double value;
+    double value;
     String str;
     public Constant parse(StringWrapper input) {
       input.mark();
@@ -207,22 +755,21 @@ public class Main {
         curr = input.next();
       input.push();
 
-      String substring = input.s.substring(input.i).toLowerCase();
-      if (substring.startsWith("pi")) {
+      if (input.s.regionMatches(true, input.i, "pi", 0, 2)) {
         value = Math.PI;
         str = "pi";
         input.i += 2;
         input.unmark();
         return this;
       }
-      if (substring.startsWith("e")) {
+      if (input.s.regionMatches(true, input.i, "e", 0, 1)) {
         value = Math.E;
         str = "e";
         input.i += 1;
         input.unmark();
         return this;
       }
-//      if (substring.startsWith("tau")) {
+//      if (input.s.regionMatches(true, input.i, "tau", 0, 3)) {
 //        value = Math.TAU;
 //        str = "tau";
 //        input.i += 3;
@@ -232,26 +779,91 @@ public class Main {
       input.restore();
       return null;
     }
-    public Double evaluate() {
+    public Constant parse(Tokens input) {
+      if (input.type() != Tokens.CONSTANT)
+        return null;
+      value = input.value[input.i];
+      str = input.length[input.i] == 2 ? "pi" : "e";
+      input.i++;
+      return this;
+    }
+    public double evalAsDouble() {
       return value;
     }
+    public void print(StringBuilder out, boolean explicitParens) {
+      out.append(explicitParens ? "(" + str + ")" : str);
+    }
+    public String toString() {
+      return toString(false);
+    }
+  }
+
+  /**
+   * A named input such as "x" or "$rate". A run of letters is one name ("exp", "pivot", "minute") unless it
+   * splits into operators and constants alone, so "pie" reads as pi, e; the $ form is never ambiguous.
+   */
+  static class Variable implements Evaluable {
+    String name;
+    int index;
+    Variables variables;
+    public Variable parse(StringWrapper input) {
+      Tokens tokens = Tokens.lex(input.s, input.i);
+      Variable ret = parse(tokens);
+      if (ret != null)
+        input.i = tokens.consumed();
+      return ret;
+    }
+    public Variable parse(Tokens input) {
+      if (input.type() != Tokens.VARIABLE)
+        return null;
+      name = input.s.substring(input.offset[input.i], input.offset[input.i] + input.length[input.i]);
+      variables = input.variables;
+      index = variables.indexOf(name);
+      input.i++;
+      return this;
+    }
+
+    /**
+     * Offset just past a variable name starting at {@code start}, or {@code start} if there is none.
+     */
+    static int scan(String s, int start) {
+      int i = start;
+      if (i < s.length() && s.charAt(i) == '$')
+        i++;
+      else if (i >= s.length() || !(Character.isLetter(s.charAt(i)) || s.charAt(i) == '_'))
+        return start;
+      while (i < s.length() && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '_'))
+        i++;
+      return i == start + 1 && s.charAt(start) == '$' ? start : i;
+    }
+
+    public double evalAsDouble() {
+      return variables.values[index];
+    }
+    public void print(StringBuilder out, boolean explicitParens) {
+      out.append(explicitParens ? "(" + name + ")" : name);
+    }
     public String toString() {
-      return EXPLICIT_PARENS?"("+str+")":str;
+      return toString(false);
     }
   }
 
   static class Grouping implements Evaluable {
     Evaluable inner = null;
     public Grouping parse(StringWrapper input) {
+      Tokens tokens = Tokens.lex(input.s, input.i);
+      Grouping ret = parse(tokens);
+      if (ret != null)
+        input.i = tokens.consumed();
+      return ret;
+    }
+    public Grouping parse(Tokens input) {
       input.mark();
-      Character curr = input.next();
-      while (isWhitespace(curr))
-        curr = input.next();
-
-      if (curr != '(') {
+      if (input.type() != Tokens.OPEN) {
         input.restore();
         return null;
       }
+      input.i++;
 
       inner = new Expression().parse(input);
 
@@ -260,323 +872,5846 @@ public class Main {
         return null;
       }
 
-      do {
-        curr = input.next();
-      } while (isWhitespace(curr));
-
-      if (curr != ')') {
+      if (input.type() != Tokens.CLOSE) {
         input.restore();
         return null;
       }
+      input.i++;
+      input.unmark();
       return this;
     }
-    public Double evaluate() {
-      return inner.evaluate();
+    public double evalAsDouble() {
+      return Evaluator.evaluate(this);
+    }
+    public void print(StringBuilder out, boolean explicitParens) {
+      Printer.print(this, out, explicitParens);
     }
     public String toString() {
-      return "( " + inner.toString() + " )";
+      return toString(false);
+    }
+  }
+
+  /**
+   * Prefix tree over operator tokens, so the lexer picks the longest match in one walk.
+   */
+  static class TokenTrie {
+    private final TokenTrie[] next = new TokenTrie[128];
+    private int symbol = -1;
+
+    TokenTrie(String[] symbols) {
+      for (int i = 0; i < symbols.length; i++) {
+        TokenTrie node = this;
+        for (char c : symbols[i].toCharArray()) {
+          if (node.next[c] == null)
+            node.next[c] = new TokenTrie(new String[0]);
+          node = node.next[c];
+        }
+        node.symbol = i;
+      }
+    }
+
+    /**
+     * Index of the longest symbol starting at {@code from}, or -1 if none does.
+     */
+    int match(String s, int from) {
+      TokenTrie node = this;
+      int best = -1;
+      for (int i = from; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c >= node.next.length || (node = node.next[c]) == null)
+          break;
+        if (node.symbol >= 0)
+          best = node.symbol;
+      }
+      return best;
     }
   }
 
   static class Operator {
-    private static Set<String> tokens = new HashSet<>(20);
     final int precedence;
     final String shape;
+    // The shape's text around each operand: parts[k] comes before operand k, the last part after the last one.
+    final String[] parts;
     final String token;
+    // The token between the last two operands of a ternary ("# ? # : #"); null for other operators.
+    final String separator;
     final int parametersLeft;
     final int parametersRight;
     final Function<Evaluable[], Double> action;
+    // The same as action without boxing, for operators made by the factories below; null otherwise.
+    final DoubleUnaryOperator unary;
+    final DoubleBinaryOperator binary;
+    final Nary nary;
+    // Set for a conditional, whose value some operands may not matter to; null for operators that use them all.
+    final Shortcut shortcut;
 
-    final static Operator[] OPS = new Operator[]{
-        new Operator(-6, 0, "ln", 1, (arr) -> Math.log(arr[0].evaluate())),
-        new Operator(-6, 0, "log", 1, (arr) -> Math.log10(arr[0].evaluate())),
-        new Operator(-5, 1, "^", 1, (arr) -> Math.pow(arr[0].evaluate(),arr[1].evaluate())),
-        new Operator(-4, 0, "+", 1, (arr) -> arr[0].evaluate()),
-        new Operator(-4, 0, "-", 1, (arr) -> -(arr[0].evaluate())),
-        new Operator(3, 1, " * ", 1, (arr) -> (arr[0].evaluate()) * (arr[1].evaluate())),
-        new Operator(3, 1, " / ", 1, (arr) -> (arr[0].evaluate()) / (arr[1].evaluate())),
-        new Operator(3, 1, " % ", 1, (arr) -> (arr[0].evaluate()) % (arr[1].evaluate())),
-        new Operator(2, 1, " + ", 1, (arr) -> (arr[0].evaluate()) + (arr[1].evaluate())),
-        new Operator(2, 1, " - ", 1, (arr) -> (arr[0].evaluate()) - (arr[1].evaluate())),
-        new Operator(1, 1, " mod ", 1, (arr) -> (arr[0].evaluate()) % (arr[1].evaluate())),
-        //        new Operator(5, 0,"log_",2, (arr) -> (Math.log(arr[1].evaluate())) / (Math.log(arr[0].evaluate()))),
-        //        new Operator("abs(#)", (arr) -> (Math.log(arr[1].evaluate())) / (Math.log(arr[0].evaluate()))),
-        //        new Operator("# ? # : #", (arr) -> (arr[0].evaluate()!=0) ? (arr[1].evaluate()) : (arr[2].evaluate()))
-    };
-
-    public String toString() {
-      return shape;
-    }
-    String toString(Evaluable[] parameters) {
-      StringBuilder ret = new StringBuilder(EXPLICIT_PARENS?"(":"");
-      int arg = 0;
-      char curr;
-      for (int i = 0; i < shape.length(); i++) {
-        curr = shape.charAt(i);
-        if (curr == '#')
-          ret.append(parameters[arg++].toString());
-        else
-          ret.append(curr);
-      }
-      ret.append(EXPLICIT_PARENS?")":"");
-      return ret.toString();
+    /**
+     * An operator's function on a primitive stack: its n operands are args[from, from + n).
+     */
+    interface Nary {
+      double applyAsDouble(double[] args, int from);
     }
 
-    public Operator(int precedence, int parametersLeft, String token, int parametersRight, Function<Evaluable[], Double> action) {
-      this.precedence = precedence;
-      StringBuilder shape = new StringBuilder("# ".repeat(parametersLeft));
-      if (parametersLeft > 0)
-        shape.deleteCharAt(shape.length() - 1);
-      shape.append(token).append("# ".repeat(parametersRight));
-      if (parametersRight > 0)
-        shape.deleteCharAt(shape.length() - 1);
-      this.shape = shape.toString();
-      this.token = token.strip();
-      tokens.add(this.token);
-      this.parametersLeft = parametersLeft;
-      this.parametersRight = parametersRight;
-      this.action = action;
+    /**
+     * Judging by the first operand alone, the index of the operand that is the value (0 for the first itself),
+     * so no other operand has to be evaluated; -1 when the operator needs them all.
+     */
+    interface Shortcut {
+      int operand(double first);
     }
-  }
 
-  static class Operation implements Evaluable {
-    Operator op;
-    Evaluable[] operands;
-    public Operation(Operator op, List<Expression.Union> parameters) {
-      this.op = op;
-      List<Evaluable> temp = parameters.stream().filter(a -> a instanceof Expression.ExWrap).map(a -> ((Expression.ExWrap) a).wrapped).collect(Collectors.toList());
+    final static Operator LN = prefix(-7, "ln", Math::log);
+    final static Operator LOG = prefix(-7, "log", Math::log10);
+    final static Operator ABS = prefix(-7, "abs", Math::abs);
+    final static Operator SQRT = prefix(-7, "sqrt", Math::sqrt);
+    final static Operator SIN = prefix(-7, "sin", Math::sin);
+    final static Operator COS = prefix(-7, "cos", Math::cos);
+    final static Operator POW = infix(-6, "^", Math::pow);
+    final static Operator POS = prefix(-5, "+", (a) -> a);
+    final static Operator NEG = prefix(-5, "-", (a) -> -a);
+    final static Operator MUL = infix(4, " * ", (a, b) -> a * b);
+    final static Operator DIV = infix(4, " / ", (a, b) -> a / b);
+    final static Operator REM = infix(4, " % ", (a, b) -> a % b);
+    final static Operator ADD = infix(3, " + ", (a, b) -> a + b);
+    final static Operator SUB = infix(3, " - ", (a, b) -> a - b);
+    final static Operator MOD = infix(2, " mod ", (a, b) -> a % b);
+    final static Operator MIN = function("min", 2, (a, i) -> Math.min(a[i], a[i + 1]));
+    final static Operator MAX = function("max", 2, (a, i) -> Math.max(a[i], a[i + 1]));
+    final static Operator IF = ternary(-1, " ? ", " : ", (a, i) -> select(a[i], a[i + 1], a[i + 2]))
+        .shortCircuit((condition) -> condition != 0 ? 1 : 2);
 
-      if (temp.size() != op.parametersLeft + op.parametersRight) {
-        System.out.println("Temp passed: " + temp);
-        throw new IllegalArgumentException("Incorrect number of parameters: Expected " + (op.parametersLeft + op.parametersRight) + " got " + temp.size() + " instead.");
-      }
+    /**
+     * Everything the lexer and parser know about operators at one point. register() replaces it rather than
+     * changing it, so a parse sees the same table from its first token to its last.
+     */
+    static final class Table {
+      final Operator[] ops;
+      // Each distinct token and separator once; OPERATOR tokens index into this.
+      final String[] symbols;
+      final TokenTrie trie;
+      // Per symbol, the reading used where an operand is expected (prefix) or where one was just read (infix).
+      final Operator[] prefix;
+      final Operator[] infix;
 
-      this.operands = new Evaluable[temp.size()];
-      for (int i = 0; i < temp.size(); i++)
-        this.operands[i] = temp.get(i);
-    }
-    public Evaluable parse(StringWrapper input) {
-      throw new IllegalArgumentException("Use Expression to parse.");
-    }
-    public Double evaluate() {
-      return op.action.apply(operands);
-    }
-    public String toString() {
-      return op.toString(operands);
+      Table(Operator[] ops) {
+        this.ops = ops;
+        Map<String, Integer> index = new LinkedHashMap<>();
+        for (Operator o : ops) {
+          index.putIfAbsent(o.token, index.size());
+          if (o.separator != null)
+            index.putIfAbsent(o.separator, index.size());
+        }
+        symbols = index.keySet().toArray(new String[0]);
+        trie = new TokenTrie(symbols);
+        prefix = new Operator[symbols.length];
+        infix = new Operator[symbols.length];
+        for (Operator o : ops) {
+          Operator[] readings = o.parametersLeft == 0 ? prefix : infix;
+          int sym = index.get(o.token);
+          if (readings[sym] != null)
+            throw new IllegalArgumentException("Operator " + o.token + " is already registered as " + readings[sym] + ".");
+          readings[sym] = o;
+        }
+        for (Operator o : ops)
+          if (o.separator != null && infix[index.get(o.separator)] != null)
+            throw new IllegalArgumentException("Separator " + o.separator + " of " + o + " is also an infix operator.");
+      }
     }
-  }
 
-  static class Expression implements Evaluable {
-    List<Union> elements = new ArrayList<>();
+    private static volatile Table table = new Table(new Operator[]{LN, LOG, ABS, SQRT, SIN, COS, POW, POS, NEG, MUL, DIV, REM,
+        ADD, SUB, MOD, MIN, MAX, IF});
 
-    interface Union {}
-    static class ExWrap implements Union {
-      final Evaluable wrapped;
-      public ExWrap(Evaluable ex) {wrapped = ex;}
-    }
-    static class OpStrWrap implements Union {
-      final String wrapped;
-      public OpStrWrap(String op) {wrapped = op;}
+    static Table table() {
+      return table;
     }
-    static class OpWrap implements Union {
-      final Operator wrapped;
-      public OpWrap(Operator op) {wrapped = op;}
+
+    /**
+     * Makes ops part of the language for every expression lexed from now on. Tokens are matched longest first,
+     * ahead of variable names, so registering "cosh" turns the variable "cosh" into an operator, though a longer
+     * name such as "cosh_max" stays a variable. Formulas compiled (and cached) before are unaffected.
+     */
+    static synchronized void register(Operator... ops) {
+      for (Operator o : ops) {
+        for (String s : o.separator == null ? new String[]{o.token} : new String[]{o.token, o.separator})
+          if (s.isEmpty() || !s.chars().allMatch((c) -> c > ' ' && c < 127 && c != '(' && c != ')' && c != ','))
+            throw new IllegalArgumentException("Operator tokens are printable ASCII other than parentheses and commas, got \"" + s + "\".");
+        boolean prefix = o.parametersLeft == 0 && o.parametersRight >= 1 && o.separator == null;
+        boolean infix = o.parametersLeft == 1 && (o.parametersRight <= 1 ? o.separator == null : o.parametersRight == 2 && o.separator != null);
+        if (!prefix && !infix)
+          throw new IllegalArgumentException("Operator " + o + " is not prefix, postfix, infix, a function call or a ternary.");
+      }
+      Operator[] all = Arrays.copyOf(table.ops, table.ops.length + ops.length);
+      System.arraycopy(ops, 0, all, table.ops.length, ops.length);
+      table = new Table(all);
     }
 
-    static Union wrap(Evaluable ex) {return new ExWrap(ex);}
-    static Union wrap(String op) {return new OpStrWrap(op);}
-    static Union wrap(Operator op) {return new OpWrap(op);}
+    /**
+     * Takes ops, as passed to register(), back out of the language for expressions lexed from now on.
+     */
+    static synchronized void unregister(Operator... ops) {
+      List<Operator> kept = new ArrayList<>(List.of(table.ops));
+      for (Operator o : ops)
+        if (!kept.removeIf((k) -> k == o))
+          throw new IllegalArgumentException("Operator " + o + " is not registered.");
+      table = new Table(kept.toArray(new Operator[0]));
+    }
 
-    public Expression parse(StringWrapper input) {
-      input.mark();
-      boolean passed = readMore(input, 30);
+    static List<Operator> registered() {
+      return List.of(table.ops);
+    }
 
-      if (passed) {
-        input.unmark();
-        return this;
+    /**
+     * Whether this operator gets folded before {@code parent} when they compete for the same operand.
+     * Higher |precedence| goes first; on a tie, negative precedence (right-to-left) goes first.
+     */
+    boolean bindsTighter(Operator parent) {
+      if (parent == null)
+        return true;
+      int p = Math.abs(precedence);
+      int q = Math.abs(parent.precedence);
+      return p > q || (p == q && precedence < 0);
+    }
+
+    /**
+     * Written as a call, "min(a, b)": its operands are delimited, so it takes no part in precedence.
+     */
+    boolean isCall() {
+      return parametersLeft == 0 && parametersRight > 1;
+    }
+
+    /**
+     * The value for operands[from, from + n), through whichever form this operator has.
+     */
+    double applyAsDouble(double[] operands, int from, int n) {
+      if (nary != null)
+        return nary.applyAsDouble(operands, from);
+      if (binary != null)
+        return binary.applyAsDouble(operands[from], operands[from + 1]);
+      if (unary != null)
+        return unary.applyAsDouble(operands[from]);
+      Evaluable[] args = new Evaluable[n];
+      for (int k = 0; k < n; k++)
+        args[k] = new Literal(operands[from + k]);
+      return action.apply(args);
+    }
+
+    /**
+     * This operator, with a shortcut for evaluators that skip operands it doesn't need. Those that evaluate
+     * every operand anyway get the same value.
+     */
+    Operator shortCircuit(Shortcut shortcut) {
+      return new Operator(this, shortcut);
+    }
+
+    // Any value but zero is true, NaN included, as in C.
+    static double select(double condition, double then, double otherwise) {
+      return condition != 0 ? then : otherwise;
+    }
+
+    public String toString() {
+      return shape;
+    }
+
+    static Operator prefix(int precedence, String token, DoubleUnaryOperator f) {
+      return new Operator(precedence, 0, token, 1, null, (arr) -> f.applyAsDouble(arr[0].evalAsDouble()), f, null, null);
+    }
+    static Operator infix(int precedence, String token, DoubleBinaryOperator f) {
+      return new Operator(precedence, 1, token, 1, null, (arr) -> f.applyAsDouble(arr[0].evalAsDouble(), arr[1].evalAsDouble()), null, f, null);
+    }
+    /**
+     * name(a, b, ...) with {@code arity} operands, at least two; one operand is a prefix().
+     */
+    static Operator function(String name, int arity, Nary f) {
+      if (arity < 2)
+        throw new IllegalArgumentException("Functions of one operand are prefix operators.");
+      return new Operator(0, 0, name, arity, null, boxed(f), null, null, f);
+    }
+    /**
+     * a token b separator c, as in "c ? a : b". The middle operand is delimited like a parenthesized one; the
+     * last binds like the right-hand side of an infix operator.
+     */
+    static Operator ternary(int precedence, String token, String separator, Nary f) {
+      return new Operator(precedence, 1, token, 2, separator, boxed(f), null, null, f);
+    }
+    private static Function<Evaluable[], Double> boxed(Nary f) {
+      return (arr) -> {
+        double[] args = new double[arr.length];
+        for (int k = 0; k < arr.length; k++)
+          args[k] = arr[k].evalAsDouble();
+        return f.applyAsDouble(args, 0);
+      };
+    }
+
+    public Operator(int precedence, int parametersLeft, String token, int parametersRight, Function<Evaluable[], Double> action) {
+      this(precedence, parametersLeft, token, parametersRight, null, action, null, null, null);
+    }
+    private Operator(int precedence, int parametersLeft, String token, int parametersRight, String separator,
+                     Function<Evaluable[], Double> action, DoubleUnaryOperator unary, DoubleBinaryOperator binary, Nary nary) {
+      this.precedence = precedence;
+      StringBuilder shape = new StringBuilder();
+      if (parametersLeft == 0 && parametersRight > 1) {
+        shape.append(token.strip()).append('(').append(String.join(", ", Collections.nCopies(parametersRight, "#"))).append(')');
       } else {
-        input.restore();
+        shape.append("# ".repeat(parametersLeft));
+        if (parametersLeft > 0)
+          shape.deleteCharAt(shape.length() - 1);
+        shape.append(token);
+        // "ln x" rather than "lnx", which reads back as a name.
+        if (parametersLeft == 0 && Character.isLetterOrDigit(token.charAt(token.length() - 1)))
+          shape.append(' ');
+        if (separator != null)
+          shape.append('#').append(separator).append('#');
+        else if (parametersRight > 0)
+          shape.append("# ".repeat(parametersRight)).deleteCharAt(shape.length() - 1);
+      }
+      this.shape = shape.toString();
+      this.parts = this.shape.split("#", -1);
+      this.token = token.strip();
+      this.separator = separator == null ? null : separator.strip();
+      this.parametersLeft = parametersLeft;
+      this.parametersRight = parametersRight;
+      this.action = action;
+      this.unary = unary;
+      this.binary = binary;
+      this.nary = nary;
+      this.shortcut = null;
+    }
+    private Operator(Operator o, Shortcut shortcut) {
+      this.precedence = o.precedence;
+      this.shape = o.shape;
+      this.parts = o.parts;
+      this.token = o.token;
+      this.separator = o.separator;
+      this.parametersLeft = o.parametersLeft;
+      this.parametersRight = o.parametersRight;
+      this.action = o.action;
+      this.unary = o.unary;
+      this.binary = o.binary;
+      this.nary = o.nary;
+      this.shortcut = shortcut;
+    }
+
+    public static void test() {
+      String[][] values = {{"abs(0-2)", "2"}, {"sqrt 16", "4"}, {"sin 0 + cos 0", "1"}, {"min(3, 1+1)", "2"},
+          {"max(2, 3)^2", "9"}, {"2*min(1, (2))", "2"}, {"1 ? 2 : 3", "2"}, {"0 ? 2 : 3", "3"}, {"0 ? 1 : 0 ? 2 : 3", "3"},
+          {"1 - 1 ? 5 : 6", "6"}, {"0 ? 2 : 3 + 4", "7"}, {"0 ? 1 ? 2 : 3 : 4", "4"}, {"1 ? 0 ? 2 : 3 : 4", "3"},
+          {"min(max(1, 2), 0 ? 5 : 6)", "2"}, {"(0/0) ? 1 : 2", "1"}};
+      for (String[] c : values)
+        assert new Expression().parse(Tokens.lex(c[0])).evaluate() == Double.parseDouble(c[1]) : c[0];
+      assert new Expression().parse(Tokens.lex("min(x,y)+(c?a:b mod 2)")).toString().equals("min(x, y) + ( c ? a : b mod 2 )");
+      assert Tokens.lex("max(1, 2)").describe().equals("\"max\", (, 1, ,, 2, )");
+      // Names that start with a word operator stay names; runs of operators and constants don't.
+      assert Tokens.lex("absx + minute*max_rate - mineral").describe().equals("absx, \"+\", minute, \"*\", max_rate, \"-\", mineral");
+      Formula names = Main.compile("absx + minute*max_rate");
+      assert names.variables().equals(List.of("absx", "minute", "max_rate")) && names.eval(1, 2, 3) == 7;
+      assert Tokens.lex("2modpi + lnln2 + log1000").describe().equals("2, \"mod\", pi, \"+\", \"ln\", \"ln\", 2, \"+\", \"log\", 1000");
+      assert Main.compile("abs x").toString().equals("abs x") && Main.compile("abs x").eval(-2) == 2;
+
+      String[][] errors = {{"min(1)", "min takes 2 arguments."}, {"min(1, 2, 3)", "min takes 2 arguments."},
+          {"min 1", "Expected ( after min."}, {"min(1 2)", "Expected , after argument 1 of min."},
+          {"min(1, 2", "Expected ) after argument 2 of min."}, {"min(, 1)", "Missing argument 1 of min."},
+          {"1 ? 2", "Expected : after ? 2."}, {"1 ? : 3", "Missing operand before :."}, {"1 ? 2 :", "Missing operand after :."},
+          {": 1", "Missing operand before :."}};
+      for (String[] c : errors) {
+        try {
+          new Expression().parse(Tokens.lex(c[0]));
+          assert false : c[0];
+        } catch (ParseFailedException e) {
+          assert e.getMessage().equals(c[1]) : c[0] + ": " + e.getMessage();
+        }
+      }
+
+      // Built-in functions compile to bytecode; registered ones evaluate through their hook.
+      assert Main.compile("max(x, 1) ? abs x : sqrt x").compiled.getClass().getName().startsWith("Main$CompiledExpression");
+      Operator cbrt = prefix(-7, "cbrt", Math::cbrt);
+      Operator hypot = function("hypot", 2, (a, i) -> Math.hypot(a[i], a[i + 1]));
+      Operator quotient = infix(4, " // ", (a, b) -> Math.floor(a / b));
+      Operator clamp = function("clamp", 3, (a, i) -> Math.max(a[i + 1], Math.min(a[i], a[i + 2])));
+      Tokens before = Tokens.lex("cbrt 8");
+      int builtIn = registered().size();
+      register(cbrt, hypot, quotient, clamp);
+      try {
+        // Lexed before, "cbrt" stays a variable.
+        assert before.describe().equals("cbrt, 8") && Tokens.lex("cbrt 8").describe().equals("\"cbrt\", 8");
+        assert Main.compile("cbrt 8 + hypot(3, x) + 7 // 2 + clamp(x, 0, 1)").eval(4) == 2 + 5 + 3 + 1;
+        assert Main.compile("hypot(x, y)").toString().equals("hypot(x, y)");
+        assert Backend.DOUBLE.evaluate(new Expression().parse(Tokens.lex("clamp(2, 0, 1)")), List.of()) == 1;
+        Operator[][] refused = {{prefix(-7, "abs", Math::abs)}, {function("f(x)", 2, (a, i) -> 0)}, {infix(4, " ", (a, b) -> 0)},
+            {new Operator(1, 2, "@", 0, (arr) -> 0.0)}, {ternary(-1, " ; ", " // ", (a, i) -> 0)}};
+        for (Operator[] ops : refused) {
+          try {
+            register(ops);
+            assert false : ops[0];
+          } catch (IllegalArgumentException e) {
+            // expected
+          }
+        }
+        assert registered().size() == builtIn + 4;
+
+        // The primitive hooks leave evaluation allocation free.
+        Tokens tokens = Tokens.lex("max(x, min(y, 2)) ? abs x + hypot(x, y) : clamp(y, 0, 1)");
+        Expression expr = new Expression().parse(tokens);
+        tokens.variables.values[0] = 3;
+        tokens.variables.values[1] = 4;
+        assert expr.evalAsDouble() == 8;
+        long bytes = Bench.allocatedBytes(() -> {
+          for (int i = 0; i < 100; i++)
+            assert expr.evalAsDouble() == 8;
+        });
+        assert bytes < 1_000 : bytes + " bytes";
+      } finally {
+        unregister(cbrt, hypot, quotient, clamp);
+      }
+      // Later tests, and this one run again, see only the built-ins.
+      assert registered().size() == builtIn && Tokens.lex("cbrt 8").describe().equals("cbrt, 8");
+    }
+  }
+
+  static class Operation implements Evaluable {
+    final Operator op;
+    final Evaluable[] operands;
+    public Operation(Operator op, Evaluable... operands) {
+      this.op = op;
+      if (operands.length != op.parametersLeft + op.parametersRight)
+        throw new IllegalArgumentException("Incorrect number of parameters: Expected " + (op.parametersLeft + op.parametersRight) + " got " + operands.length + " instead.");
+      this.operands = operands;
+    }
+    public Evaluable parse(StringWrapper input) {
+      throw new IllegalArgumentException("Use Expression to parse.");
+    }
+    public Evaluable parse(Tokens input) {
+      throw new IllegalArgumentException("Use Expression to parse.");
+    }
+    public double evalAsDouble() {
+      return Evaluator.evaluate(this);
+    }
+    public void print(StringBuilder out, boolean explicitParens) {
+      Printer.print(this, out, explicitParens);
+    }
+    public String toString() {
+      return toString(false);
+    }
+  }
+
+  static class Expression implements Evaluable {
+    // Terms written side by side without an operator ("2 pi") each get their own element; the first one is the value.
+    List<Evaluable> elements = new ArrayList<>();
+
+    public Expression parse(StringWrapper input) {
+      Tokens tokens = Tokens.lex(input.s, input.i);
+      Expression ret = parse(tokens);
+      if (ret != null)
+        input.i = tokens.consumed();
+      return ret;
+    }
+    // What a parse frame does with the result handed back by the frame above it.
+    private static final byte TERMS = 0;   // node is an Expression collecting juxtaposed terms
+    private static final byte TERM = 1;    // node is the operand so far, op the operator it must bind tighter than
+    private static final byte PREFIX = 2;  // op is a unary operator waiting for its operand
+    private static final byte GROUP = 3;   // node is a Grouping, mark the index of its "("
+    private static final byte CALL = 4;    // node is the call's Operation, mark the number of arguments read
+    private static final byte TERNARY = 5; // op is the ternary, node its middle operand once read
+
+    /**
+     * Pending steps of one parse, in parallel arrays instead of on the call stack.
+     */
+    private static class Frames {
+      byte[] kind = new byte[16];
+      Operator[] op = new Operator[16];
+      Operator[] pending = new Operator[16];
+      Evaluable[] node = new Evaluable[16];
+      int[] mark = new int[16];
+      int size = 0;
+
+      void push(byte kind, Operator op, Evaluable node, int mark) {
+        if (size == this.kind.length)
+          grow();
+        this.kind[size] = kind;
+        this.op[size] = op;
+        this.pending[size] = null;
+        this.node[size] = node;
+        this.mark[size] = mark;
+        size++;
+      }
+      void pop() {
+        size--;
+      }
+      private void grow() {
+        int cap = size * 2;
+        kind = Arrays.copyOf(kind, cap);
+        op = Arrays.copyOf(op, cap);
+        pending = Arrays.copyOf(pending, cap);
+        node = Arrays.copyOf(node, cap);
+        mark = Arrays.copyOf(mark, cap);
+      }
+    }
+
+    /**
+     * Precedence climbing over the registered Operator.Table. A term reads an operand, then keeps folding infix
+     * operators into it for as long as they bind tighter than the operator it sits under, so each operator is
+     * looked at once. Nested operands get a frame on an explicit stack rather than a recursive call, so nesting
+     * is bounded by input.limits and not by the thread's stack.
+     */
+    public Expression parse(Tokens input) {
+      Frames stack = new Frames();
+      stack.push(TERMS, null, this, 0);
+      stack.push(TERM, null, null, 0);
+      int depth = 1;
+      operand:
+      while (true) {
+        // The term on top needs an operand.
+        if (depth > input.limits.maxDepth)
+          throw new ParseFailedException("Expression is nested deeper than " + input.limits.maxDepth + " levels.");
+        Evaluable value;
+        switch (input.type()) {
+          case Tokens.OPEN:
+            stack.push(GROUP, null, new Grouping(), input.i);
+            input.i++;
+            stack.push(TERMS, null, new Expression(), 0);
+            stack.push(TERM, null, null, 0);
+            depth++;
+            continue;
+          case Tokens.CONSTANT:
+            value = new Constant().parse(input);
+            break;
+          case Tokens.NUMERAL:
+            value = new Numeral().parse(input);
+            break;
+          case Tokens.VARIABLE:
+            value = new Variable().parse(input);
+            break;
+          case Tokens.PARSED:
+            value = input.parsed[input.symbol[input.i++]];
+            break;
+          case Tokens.ERROR:
+            throw new ParseFailedException(input.error);
+          case Tokens.OPERATOR:
+            // An operator where an operand is expected is unary: leading, or the rest of a run.
+            String token = input.operators.symbols[input.symbol[input.i]];
+            Operator op = input.operators.prefix[input.symbol[input.i]];
+            Operator parent = stack.op[stack.size - 1];
+            if (op == null)
+              throw new ParseFailedException("Missing operand before " + token + ".");
+            if (op.isCall()) {
+              if (input.type[input.i + 1] != Tokens.OPEN)
+                throw new ParseFailedException("Expected ( after " + token + ".");
+              input.symbol[input.i + 1] = Tokens.CALL;
+              input.i += 2;
+              stack.push(CALL, null, new Operation(op, new Evaluable[op.parametersRight]), 0);
+              stack.push(TERM, null, null, 0);
+              depth++;
+              continue;
+            }
+            if (!op.bindsTighter(parent))
+              throw new ParseFailedException("Operator " + token + " cannot follow " + parent.token + ".");
+            input.i++;
+            stack.push(PREFIX, op, null, 0);
+            stack.push(TERM, op, null, 0);
+            depth++;
+            continue;
+          default:
+            value = null;
+        }
+
+        // Hand value, the result of the frame just finished (null if nothing parsed), down the stack until a
+        // frame needs another operand.
+        while (true) {
+          int top = stack.size - 1;
+          switch (stack.kind[top]) {
+            case TERM:
+              Evaluable left = stack.node[top];
+              if (left == null) {
+                left = value;
+              } else {
+                if (value == null)
+                  throw new ParseFailedException("Missing operand after " + stack.pending[top].token + ".");
+                left = new Operation(stack.pending[top], left, value);
+              }
+              Operator parent = stack.op[top];
+              while (left != null && input.type() == Tokens.OPERATOR) {
+                // An operator right after an operand is binary: the first in a run of operators.
+                Operator op = input.operators.infix[input.symbol[input.i]];
+                if (op == null || !op.bindsTighter(parent))
+                  break;
+                input.i++;
+                if (op.parametersRight == 0) {
+                  left = new Operation(op, left);
+                  continue;
+                }
+                if (op.separator != null) {
+                  // The middle operand runs to the separator whatever it contains, like a group.
+                  stack.node[top] = left;
+                  stack.pending[top] = op;
+                  stack.push(TERNARY, op, null, 0);
+                  stack.push(TERM, null, null, 0);
+                  depth++;
+                  continue operand;
+                }
+                Evaluable right = leaf(input, op);
+                if (right != null) {
+                  left = new Operation(op, left, right);
+                  continue;
+                }
+                stack.node[top] = left;
+                stack.pending[top] = op;
+                stack.push(TERM, op, null, 0);
+                depth++;
+                continue operand;
+              }
+              value = left;
+              stack.pop();
+              depth--;
+              continue;
+            case PREFIX:
+              if (value == null)
+                throw new ParseFailedException("Missing operand after " + stack.op[top].token + ".");
+              value = new Operation(stack.op[top], value);
+              stack.pop();
+              continue;
+            case CALL: {
+              Operation call = (Operation) stack.node[top];
+              int n = call.operands.length;
+              int k = stack.mark[top];
+              if (value == null)
+                throw new ParseFailedException("Missing argument " + (k + 1) + " of " + call.op.token + ".");
+              call.operands[k++] = value;
+              stack.mark[top] = k;
+              if (k < n && input.type() == Tokens.COMMA) {
+                input.i++;
+                stack.push(TERM, null, null, 0);
+                depth++;
+                continue operand;
+              }
+              if (k < n && input.type() == Tokens.CLOSE || k == n && input.type() == Tokens.COMMA)
+                throw new ParseFailedException(call.op.token + " takes " + n + " arguments.");
+              if (input.type() != Tokens.CLOSE)
+                throw new ParseFailedException("Expected " + (k < n ? "," : ")") + " after argument " + k + " of " + call.op.token + ".");
+              input.i++;
+              value = call;
+              stack.pop();
+              continue;
+            }
+            case TERNARY: {
+              Operator op = stack.op[top];
+              if (value == null)
+                throw new ParseFailedException("Missing operand after " + (stack.node[top] == null ? op.token : op.separator) + ".");
+              if (stack.node[top] == null) {
+                if (input.type() != Tokens.OPERATOR || !input.operators.symbols[input.symbol[input.i]].equals(op.separator))
+                  throw new ParseFailedException("Expected " + op.separator + " after " + op.token + " " + value + ".");
+                input.i++;
+                stack.node[top] = value;
+                stack.push(TERM, op, null, 0);
+                depth++;
+                continue operand;
+              }
+              // The term below holds the first operand, and carries on with the whole ternary as its left.
+              value = new Operation(op, stack.node[top - 1], stack.node[top], value);
+              stack.node[top - 1] = null;
+              stack.pop();
+              continue;
+            }
+            case GROUP:
+              if (value == null || input.type() != Tokens.CLOSE) {
+                input.i = stack.mark[top];
+                value = null;
+              } else {
+                input.i++;
+                Grouping grouping = (Grouping) stack.node[top];
+                grouping.inner = value;
+                value = grouping;
+              }
+              stack.pop();
+              continue;
+            default:
+              Expression expr = (Expression) stack.node[top];
+              if (value != null) {
+                if (PRINT_DEBUG)
+                  System.out.println("Term found: " + value + ". Leaving \"" + input + "\"");
+                expr.elements.add(value);
+                stack.push(TERM, null, null, 0);
+                depth++;
+                continue operand;
+              }
+              stack.pop();
+              if (stack.size == 0)
+                return expr.elements.isEmpty() ? null : expr;
+              value = expr.elements.isEmpty() ? null : expr;
+          }
+        }
+      }
+    }
+
+    /**
+     * The operand after {@code op} when it is a single token that nothing after it binds to ahead of op, as in
+     * most of "1 + 2 * x - 3", so the parse needs no frame for it. Otherwise null, consuming nothing.
+     */
+    private static Evaluable leaf(Tokens input, Operator op) {
+      byte type = input.type();
+      if (type != Tokens.NUMERAL && type != Tokens.CONSTANT && type != Tokens.VARIABLE)
+        return null;
+      if (input.type[input.i + 1] == Tokens.OPERATOR) {
+        Operator next = input.operators.infix[input.symbol[input.i + 1]];
+        if (next != null && next.bindsTighter(op))
+          return null;
+      }
+      return type == Tokens.NUMERAL ? new Numeral().parse(input) : type == Tokens.CONSTANT ? new Constant().parse(input) : new Variable().parse(input);
+    }
+
+    /**
+     * Null for an Expression with no elements, where evalAsDouble() is NaN.
+     */
+    public Double evaluate() {
+      return elements.isEmpty() ? null : evalAsDouble();
+    }
+    public double evalAsDouble() {
+      if (elements.isEmpty())
+        return Double.NaN;
+      return Evaluator.evaluate(this);
+    }
+    public void print(StringBuilder out, boolean explicitParens) {
+      Printer.print(this, out, explicitParens);
+    }
+    public String toString() {
+      return toString(false);
+    }
+
+    public static void test() {
+      // Far deeper than any call stack, through every stage.
+      int n = 100_000;
+      String parens = "(".repeat(n) + "x" + ")".repeat(n);
+      Expression expr = new Expression().parse(new StringWrapper(parens));
+      assert expr.toString().length() == 4 * n + 1;
+      assert compile(parens).eval(3) == 3;
+      String unary = "-".repeat(n + 1) + "x";
+      assert new Expression().parse(new StringWrapper(unary.replace('x', '1'))).evaluate() == -1;
+      assert compile(unary).eval(3) == -3;
+      assert compile(unary).toString().equals("-x");
+      String chain = "x" + "+1".repeat(n);
+      double[] out = new double[3];
+      compile(chain).evaluateBatch(new double[][]{{0, 1, 2}}, out);
+      assert Arrays.equals(out, new double[]{n, n + 1, n + 2});
+      assert new Expression().parse(new StringWrapper("2^".repeat(n) + "1")).evaluate() == Double.POSITIVE_INFINITY;
+      LiveExpression live = new LiveExpression(parens.replace("x", "1"));
+      assert live.update(n, 1, "2") == 2;
+
+      // A character no token starts with is an error where the parser reaches it, not the end of the input.
+      String[][] unknown = {{"1 + #", "'#' at 4"}, {"min(1, @)", "'@' at 7"}, {"2 * \u00b2", "'\u00b2' at 4"}};
+      for (String[] c : unknown) {
+        try {
+          new Expression().parse(Tokens.lex(c[0]));
+          assert false : c[0];
+        } catch (ParseFailedException e) {
+          assert e.getMessage().equals("Unexpected character " + c[1] + ".") : c[0] + ": " + e.getMessage();
+        }
+      }
+
+      // Guards.
+      Limits limits = new Limits(10, 3);
+      assert compile("1+2+3+4+5", limits).eval() == 15;
+      assert compile("((1))+-2", limits).eval() == -1;
+      for (String s : new String[]{"1+2+3+4+5+6", "(((1)))", "---1", "1^2^3^4^5"}) {
+        try {
+          compile(s, limits);
+          assert false : s;
+        } catch (ParseFailedException e) {
+          assert e.getMessage().startsWith(s.length() > 10 ? "Expression has more than 10 tokens" : "Expression is nested deeper than 3") : s + ": " + e.getMessage();
+        }
+      }
+
+      // Primitive evaluation allocates nothing once this thread's stacks have grown to fit the tree.
+      Expression random = new Expression().parse(Tokens.lex(Bench.random(1_000, 7)));
+      double value = random.evalAsDouble();
+      assert random.evaluate().equals(value);
+      long bytes = Bench.allocatedBytes(() -> {
+        for (int i = 0; i < 100; i++)
+          assert Double.compare(random.evalAsDouble(), value) == 0;
+      });
+      assert bytes < 1_000 : bytes + " bytes";
+      assert new Expression().evaluate() == null && Double.isNaN(new Expression().evalAsDouble());
+    }
+  }
+
+  /**
+   * A parser for high parse rates that allocates nothing once its arrays have grown to fit the inputs. Each
+   * thread has one, from local(). It keeps its Tokens, its parse frames and the parsed nodes in arrays that the
+   * next parse reuses, so what parse() returns is only good until that thread's next parse.
+   * - Nodes are columns indexed by int instead of objects, operands ahead of the nodes using them. A Grouping
+   *   or a run of juxtaposed terms is not a node of its own: it is the node of its value.
+   * - Variable names stay spans of the source, numbered in order of first appearance as Variables does.
+   * - It reads the same language as Expression.parse(), by the same steps. On an error it throws what
+   *   parsing into a tree does.
+   */
+  static final class Arena {
+    private static final ThreadLocal<Arena> LOCAL = ThreadLocal.withInitial(Arena::new);
+    private static final byte VALUE = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte OPERATION = 2;
+    // Frame kinds, as in Expression.parse().
+    private static final byte TERMS = 0;
+    private static final byte TERM = 1;
+    private static final byte PREFIX = 2;
+    private static final byte GROUP = 3;
+    private static final byte CALL = 4;
+    private static final byte TERNARY = 5;
+
+    private final Tokens tokens = Tokens.lex("");
+    // Node i is a number value[i], variable first[i], or op[i] over operands[first[i], first[i] + its arity).
+    private byte[] kind = new byte[64];
+    private double[] value = new double[64];
+    private Operator[] op = new Operator[64];
+    private int[] first = new int[64];
+    private int size;
+    private int[] operands = new int[128];
+    private int used;
+    private int root;
+    // Parse frames, with node ids (-1 for none) where Expression.Frames has nodes. A CALL's mark is where
+    // its arguments start in held.
+    private byte[] frame = new byte[16];
+    private Operator[] frameOp = new Operator[16];
+    private Operator[] pending = new Operator[16];
+    private int[] node = new int[16];
+    private int[] mark = new int[16];
+    private int frames;
+    private int[] held = new int[16];
+    private int holding;
+    // Where each variable's name first appears, and an open-addressing table of variable + 1 by name hash.
+    private int[] nameOffset = new int[8];
+    private int[] nameLength = new int[8];
+    private int[] nameHash = new int[8];
+    private int names;
+    private int[] slots = new int[16];
+    private double[] results = new double[64];
+    private double[] args = new double[4];
+
+    static Arena local() {
+      return LOCAL.get();
+    }
+
+    Arena parse(String source) {
+      return parse(source, Limits.DEFAULT);
+    }
+    Arena parse(String source, Limits limits) {
+      Tokens input = tokens.relex(source, limits);
+      size = 0;
+      used = 0;
+      frames = 0;
+      holding = 0;
+      if (names > 0)
+        Arrays.fill(slots, 0);
+      names = 0;
+      push(TERMS, null, 0);
+      push(TERM, null, 0);
+      int depth = 1;
+      operand:
+      while (true) {
+        if (depth > limits.maxDepth)
+          throw failure();
+        int value;
+        switch (input.type()) {
+          case Tokens.OPEN:
+            push(GROUP, null, input.i);
+            input.i++;
+            push(TERMS, null, 0);
+            push(TERM, null, 0);
+            depth++;
+            continue;
+          case Tokens.CONSTANT:
+          case Tokens.NUMERAL:
+            value = add(VALUE, null, input.value[input.i++], 0);
+            break;
+          case Tokens.VARIABLE:
+            value = variable(input);
+            break;
+          case Tokens.OPERATOR: {
+            Operator op = input.operators.prefix[input.symbol[input.i]];
+            if (op == null)
+              throw failure();
+            if (op.isCall()) {
+              if (input.type[input.i + 1] != Tokens.OPEN)
+                throw failure();
+              input.i += 2;
+              push(CALL, op, holding);
+              push(TERM, null, 0);
+              depth++;
+              continue;
+            }
+            if (!op.bindsTighter(frameOp[frames - 1]))
+              throw failure();
+            input.i++;
+            push(PREFIX, op, 0);
+            push(TERM, op, 0);
+            depth++;
+            continue;
+          }
+          case Tokens.ERROR:
+            throw failure();
+          default:
+            value = -1;
+        }
+
+        while (true) {
+          int top = frames - 1;
+          switch (frame[top]) {
+            case TERM: {
+              int left = node[top];
+              if (left < 0) {
+                left = value;
+              } else {
+                if (value < 0)
+                  throw failure();
+                left = operation(pending[top], left, value, -1);
+              }
+              Operator parent = frameOp[top];
+              while (left >= 0 && input.type() == Tokens.OPERATOR) {
+                Operator op = input.operators.infix[input.symbol[input.i]];
+                if (op == null || !op.bindsTighter(parent))
+                  break;
+                input.i++;
+                if (op.parametersRight == 0) {
+                  left = operation(op, left, -1, -1);
+                  continue;
+                }
+                if (op.separator != null) {
+                  node[top] = left;
+                  pending[top] = op;
+                  push(TERNARY, op, 0);
+                  push(TERM, null, 0);
+                  depth++;
+                  continue operand;
+                }
+                int right = leaf(input, op);
+                if (right >= 0) {
+                  left = operation(op, left, right, -1);
+                  continue;
+                }
+                node[top] = left;
+                pending[top] = op;
+                push(TERM, op, 0);
+                depth++;
+                continue operand;
+              }
+              value = left;
+              frames--;
+              depth--;
+              continue;
+            }
+            case PREFIX:
+              if (value < 0)
+                throw failure();
+              value = operation(frameOp[top], value, -1, -1);
+              frames--;
+              continue;
+            case CALL: {
+              Operator op = frameOp[top];
+              if (value < 0)
+                throw failure();
+              if (holding == held.length)
+                held = Arrays.copyOf(held, holding * 2);
+              held[holding++] = value;
+              int k = holding - mark[top];
+              if (k < op.parametersRight && input.type() == Tokens.COMMA) {
+                input.i++;
+                push(TERM, null, 0);
+                depth++;
+                continue operand;
+              }
+              if (k < op.parametersRight || input.type() != Tokens.CLOSE)
+                throw failure();
+              input.i++;
+              holding = mark[top];
+              int from = reserve(k);
+              System.arraycopy(held, holding, operands, from, k);
+              value = add(OPERATION, op, 0, from);
+              frames--;
+              continue;
+            }
+            case TERNARY: {
+              Operator op = frameOp[top];
+              if (value < 0)
+                throw failure();
+              if (node[top] < 0) {
+                if (input.type() != Tokens.OPERATOR || !input.operators.symbols[input.symbol[input.i]].equals(op.separator))
+                  throw failure();
+                input.i++;
+                node[top] = value;
+                push(TERM, op, 0);
+                depth++;
+                continue operand;
+              }
+              value = operation(op, node[top - 1], node[top], value);
+              node[top - 1] = -1;
+              frames--;
+              continue;
+            }
+            case GROUP:
+              if (value < 0 || input.type() != Tokens.CLOSE) {
+                // Nodes parsed inside stay behind, unused.
+                input.i = mark[top];
+                value = -1;
+              } else {
+                input.i++;
+              }
+              frames--;
+              continue;
+            default:
+              if (value >= 0) {
+                if (node[top] < 0)
+                  node[top] = value;
+                push(TERM, null, 0);
+                depth++;
+                continue operand;
+              }
+              frames--;
+              value = node[top];
+              if (frames > 0)
+                continue;
+              if (value < 0)
+                throw new ParseFailedException("Found no expression in \"" + source + "\".");
+              root = value;
+              return this;
+          }
+        }
+      }
+    }
+
+    /**
+     * As Expression.leaf(): the operand after op when it is a single token nothing after it binds to first.
+     */
+    private int leaf(Tokens input, Operator op) {
+      byte type = input.type();
+      if (type != Tokens.NUMERAL && type != Tokens.CONSTANT && type != Tokens.VARIABLE)
+        return -1;
+      if (input.type[input.i + 1] == Tokens.OPERATOR) {
+        Operator next = input.operators.infix[input.symbol[input.i + 1]];
+        if (next != null && next.bindsTighter(op))
+          return -1;
+      }
+      return type == Tokens.VARIABLE ? variable(input) : add(VALUE, null, input.value[input.i++], 0);
+    }
+
+    // Parse errors are rare, and their messages print operands: parsing the same input into a tree fails the
+    // same way and words it.
+    private ParseFailedException failure() {
+      try {
+        new Expression().parse(Tokens.lex(tokens.s, tokens.limits));
+      } catch (ParseFailedException e) {
+        return e;
+      }
+      // Both take the same steps, so one of them has a bug.
+      throw new IllegalStateException("Only one parser rejects \"" + tokens.s + "\".");
+    }
+
+    private void push(byte kind, Operator op, int mark) {
+      if (frames == frame.length) {
+        int cap = frames * 2;
+        frame = Arrays.copyOf(frame, cap);
+        frameOp = Arrays.copyOf(frameOp, cap);
+        pending = Arrays.copyOf(pending, cap);
+        node = Arrays.copyOf(node, cap);
+        this.mark = Arrays.copyOf(this.mark, cap);
+      }
+      frame[frames] = kind;
+      frameOp[frames] = op;
+      pending[frames] = null;
+      node[frames] = -1;
+      this.mark[frames] = mark;
+      frames++;
+    }
+
+    private int add(byte kind, Operator op, double value, int first) {
+      if (size == this.kind.length) {
+        int cap = size * 2;
+        this.kind = Arrays.copyOf(this.kind, cap);
+        this.value = Arrays.copyOf(this.value, cap);
+        this.op = Arrays.copyOf(this.op, cap);
+        this.first = Arrays.copyOf(this.first, cap);
+      }
+      this.kind[size] = kind;
+      this.value[size] = value;
+      this.op[size] = op;
+      this.first[size] = first;
+      return size++;
+    }
+
+    /**
+     * op over a, b and c, as many of them as it has operands.
+     */
+    private int operation(Operator op, int a, int b, int c) {
+      int n = op.parametersLeft + op.parametersRight;
+      int from = reserve(n);
+      operands[from] = a;
+      if (n > 1)
+        operands[from + 1] = b;
+      if (n > 2)
+        operands[from + 2] = c;
+      return add(OPERATION, op, 0, from);
+    }
+
+    private int reserve(int n) {
+      if (used + n > operands.length)
+        operands = Arrays.copyOf(operands, Math.max(operands.length * 2, used + n));
+      used += n;
+      return used - n;
+    }
+
+    private int variable(Tokens input) {
+      String s = input.s;
+      int from = input.offset[input.i];
+      int length = input.length[input.i];
+      input.i++;
+      int hash = 0;
+      for (int k = from; k < from + length; k++)
+        hash = 31 * hash + s.charAt(k);
+      int mask = slots.length - 1;
+      int slot = (hash ^ hash >>> 16) & mask;
+      for (int v; (v = slots[slot] - 1) >= 0; slot = (slot + 1) & mask)
+        if (nameHash[v] == hash && nameLength[v] == length && s.regionMatches(nameOffset[v], s, from, length))
+          return add(VARIABLE, null, 0, v);
+      if (names == nameOffset.length) {
+        nameOffset = Arrays.copyOf(nameOffset, names * 2);
+        nameLength = Arrays.copyOf(nameLength, names * 2);
+        nameHash = Arrays.copyOf(nameHash, names * 2);
+      }
+      nameOffset[names] = from;
+      nameLength[names] = length;
+      nameHash[names] = hash;
+      slots[slot] = ++names;
+      if (names * 2 > slots.length) {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int v = 0; v < names; v++) {
+          int h = nameHash[v];
+          for (slot = (h ^ h >>> 16) & mask; slots[slot] != 0; slot = (slot + 1) & mask) ;
+          slots[slot] = v + 1;
+        }
+      }
+      return add(VARIABLE, null, 0, names - 1);
+    }
+
+    /**
+     * Nodes of the last parse, those left unused included.
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Names of the last parse's variables, in the order evaluate() expects their values.
+     */
+    List<String> variables() {
+      List<String> ret = new ArrayList<>(names);
+      for (int v = 0; v < names; v++)
+        ret.add(tokens.s.substring(nameOffset[v], nameOffset[v] + nameLength[v]));
+      return ret;
+    }
+
+    /**
+     * The value of the last parse with the given variable bindings.
+     */
+    double evaluate(double... bindings) {
+      if (bindings.length < names)
+        throw new IllegalArgumentException("Expected " + names + " values for " + variables() + " got " + bindings.length + " instead.");
+      if (results.length < size)
+        results = new double[kind.length];
+      double[] results = this.results;
+      for (int i = 0; i <= root; i++) {
+        if (kind[i] == VALUE) {
+          results[i] = value[i];
+          continue;
+        }
+        if (kind[i] == VARIABLE) {
+          results[i] = bindings[first[i]];
+          continue;
+        }
+        Operator o = op[i];
+        int from = first[i];
+        if (o.binary != null) {
+          results[i] = o.binary.applyAsDouble(results[operands[from]], results[operands[from + 1]]);
+        } else if (o.unary != null) {
+          results[i] = o.unary.applyAsDouble(results[operands[from]]);
+        } else {
+          int n = o.parametersLeft + o.parametersRight;
+          if (n > args.length)
+            args = new double[n];
+          for (int k = 0; k < n; k++)
+            args[k] = results[operands[from + k]];
+          results[i] = o.applyAsDouble(args, 0, n);
+        }
+      }
+      return results[root];
+    }
+
+    public static void test() {
+      Arena arena = Arena.local();
+      assert arena.parse("1 + 2 * 3").evaluate() == 7;
+      assert arena.parse("min(x, 2) * -y + (x ? 10 : 20) z").evaluate(1, 3, 5) == -3 + 10;
+      assert arena.variables().equals(List.of("x", "y", "z"));
+      assert arena.parse("abc + ab * abc").evaluate(2, 3) == 8 && arena.variables().equals(List.of("abc", "ab"));
+      // Stops where the tree parser does.
+      assert arena.parse("2 (3").evaluate() == 2 && arena.parse("4 )").evaluate() == 4;
+      StringBuilder many = new StringBuilder("0");
+      for (int v = 0; v < 1_000; v++)
+        many.append("+v").append(v % 700);
+      double[] bindings = new double[1_000];
+      Arrays.fill(bindings, 1);
+      assert arena.parse(many.toString()).evaluate(bindings) == 1_000 && arena.variables().size() == 700;
+      assert arena.parse("x").evaluate(5) == 5 && arena.variables().equals(List.of("x"));
+
+      // The same errors, worded the same, as the tree parser.
+      for (String s : new String[]{"", " ", "1 +", "* 2", "min(1)", "min(1, 2, 3)", "min(1 2)", "min(, 1)", "max 1", "1 ? : 3",
+          "1 ? 2", "1 ? 2 :", ": 1", "1.e", "((1)", "-^2", "2^-3"}) {
+        Object tree;
+        try {
+          Expression e = new Expression().parse(Tokens.lex(s));
+          tree = e == null ? "Found no expression in \"" + s + "\"." : e.evalAsDouble();
+        } catch (ParseFailedException e) {
+          tree = e.getMessage();
+        }
+        Object got;
+        try {
+          got = arena.parse(s).evaluate();
+        } catch (ParseFailedException e) {
+          got = e.getMessage();
+        }
+        assert got.equals(tree) : s + ": " + got + " where the tree parser gives " + tree;
+      }
+      Limits limits = new Limits(10, 2);
+      for (String s : new String[]{"((1))+-2", "1+2+3+4+5+6"}) {
+        String tree = null;
+        try {
+          new Expression().parse(Tokens.lex(s, limits));
+        } catch (ParseFailedException e) {
+          tree = e.getMessage();
+        }
+        try {
+          arena.parse(s, limits);
+          assert false : s;
+        } catch (ParseFailedException e) {
+          assert tree != null && e.getMessage().equals(tree) : s + ": " + e.getMessage() + " where the tree parser gives " + tree;
+        }
+      }
+
+      // Nothing allocated per parse once warm, variables, calls and all.
+      String random = Bench.random(1_000, 7);
+      String named = "min(x, y) * abs(z) + (x ? y : 2) - " + many;
+      for (String source : new String[]{random, named}) {
+        double expected = arena.parse(source).evaluate(bindings);
+        long bytes = Bench.allocatedBytes(() -> {
+          for (int i = 0; i < 100; i++)
+            assert Double.compare(arena.parse(source).evaluate(bindings), expected) == 0;
+        });
+        assert bytes < 1_000 : bytes + " bytes";
+      }
+      Arena[] other = new Arena[1];
+      Thread t = new Thread(() -> other[0] = Arena.local());
+      t.start();
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      assert other[0] != null && other[0] != arena;
+    }
+  }
+
+  /**
+   * Walks a tree operands first, keeping its place on an explicit stack instead of the call stack. Each call to
+   * next() moves to the following node; the {@code children} nodes visited just before it are its operands.
+   * Only the parts that decide the value are visited: an Expression's first element, a Grouping's inner.
+   * A subclass can override descend() to visit a node as if it had no operands.
+   */
+  static class PostOrder {
+    private Evaluable[] nodes = new Evaluable[16];
+    private int[] next = new int[16];
+    private int top = 0;
+    Evaluable node;
+    int children;
+
+    PostOrder(Evaluable root) {
+      nodes[0] = root;
+    }
+
+    /**
+     * Starts over at root, so one PostOrder can serve many walks.
+     */
+    void reset(Evaluable root) {
+      while (top >= 0)
+        nodes[top--] = null;
+      top = 0;
+      nodes[0] = root;
+      next[0] = 0;
+    }
+
+    boolean next() {
+      while (top >= 0) {
+        Evaluable child = next[top] < 0 ? null : child(nodes[top], next[top]);
+        if (child == null) {
+          node = nodes[top];
+          children = Math.max(next[top], 0);
+          nodes[top--] = null;
+          return true;
+        }
+        next[top]++;
+        if (++top == nodes.length) {
+          nodes = Arrays.copyOf(nodes, top * 2);
+          next = Arrays.copyOf(next, top * 2);
+        }
+        nodes[top] = child;
+        next[top] = descend(child) ? 0 : -1;
+      }
+      return false;
+    }
+
+    /**
+     * Whether to visit e's operands; asked once per visit, after everything before e has been visited.
+     */
+    boolean descend(Evaluable e) {
+      return true;
+    }
+
+    static Evaluable child(Evaluable e, int k) {
+      if (e instanceof Operation) {
+        Evaluable[] operands = ((Operation) e).operands;
+        return k < operands.length ? operands[k] : null;
+      }
+      if (k > 0)
         return null;
+      if (e instanceof Grouping)
+        return ((Grouping) e).inner;
+      if (e instanceof Expression)
+        return ((Expression) e).elements.get(0);
+      if (e instanceof LiveExpression.Span && !((LiveExpression.Span) e).cached)
+        return ((LiveExpression.Span) e).inner;
+      return null;
+    }
+  }
+
+  /**
+   * Evaluates a tree without recursion, so depth is bounded by memory rather than the thread's stack. Each
+   * thread keeps its stacks from one call to the next, and operators made by Operator.prefix() or infix() are
+   * applied to primitives, so evaluating allocates nothing.
+   */
+  static class Evaluator {
+    // An operand already evaluated, handed to Operator.action in place of its subtree.
+    static class Value implements Evaluable {
+      double value;
+      public Evaluable parse(StringWrapper input) {
+        throw new IllegalArgumentException("Values are not parsed.");
+      }
+      public Evaluable parse(Tokens input) {
+        throw new IllegalArgumentException("Values are not parsed.");
+      }
+      public double evalAsDouble() {
+        return value;
+      }
+      public void print(StringBuilder out, boolean explicitParens) {
+        out.append(value);
+      }
+      public String toString() {
+        return toString(false);
+      }
+    }
+
+    private static final ThreadLocal<Evaluator> LOCAL = ThreadLocal.withInitial(Evaluator::new);
+
+    private final PostOrder walk;
+    private double[] values = new double[16];
+    private Evaluable[][] args = new Evaluable[3][];
+    // Whether this thread's Evaluator is in use, by a leaf whose evalAsDouble() evaluates another tree.
+    private boolean busy;
+    // Subtrees whose values are already known, taken as they are instead of walked; null for none.
+    private final Map<Evaluable, Double> done;
+
+    private Evaluator() {
+      this(null);
+    }
+    private Evaluator(Map<Evaluable, Double> done) {
+      this.done = done;
+      walk = done == null ? new PostOrder(null) : new PostOrder(null) {
+        @Override
+        boolean descend(Evaluable e) {
+          return !done.containsKey(e);
+        }
+      };
+    }
+
+    static double evaluate(Evaluable root) {
+      Evaluator evaluator = LOCAL.get();
+      if (evaluator.busy)
+        return new Evaluator().run(root);
+      evaluator.busy = true;
+      try {
+        return evaluator.run(root);
+      } finally {
+        evaluator.busy = false;
+      }
+    }
+    /**
+     * Like evaluate(root), with the subtrees in done taken at the value given.
+     */
+    static double evaluate(Evaluable root, Map<Evaluable, Double> done) {
+      return new Evaluator(done).run(root);
+    }
+
+    private double run(Evaluable root) {
+      PostOrder walk = this.walk;
+      walk.reset(root);
+      double[] values = this.values;
+      int size = 0;
+      while (walk.next()) {
+        Evaluable e = walk.node;
+        if (done != null && walk.children == 0 && done.containsKey(e)) {
+          if (size == values.length)
+            this.values = values = Arrays.copyOf(values, size * 2);
+          values[size++] = done.get(e);
+        } else if (e instanceof Operation) {
+          Operator op = ((Operation) e).op;
+          if (op.binary != null) {
+            size--;
+            values[size - 1] = op.binary.applyAsDouble(values[size - 1], values[size]);
+          } else if (op.unary != null) {
+            values[size - 1] = op.unary.applyAsDouble(values[size - 1]);
+          } else if (op.nary != null) {
+            size -= walk.children;
+            values[size] = op.nary.applyAsDouble(values, size);
+            size++;
+          } else {
+            int n = walk.children;
+            size -= n;
+            if (size == values.length)
+              this.values = values = Arrays.copyOf(values, size * 2 + 1);
+            values[size] = op.action.apply(args(values, size, n));
+            size++;
+          }
+        } else if (walk.children == 0) {
+          if (size == values.length)
+            this.values = values = Arrays.copyOf(values, size * 2);
+          values[size++] = e.evalAsDouble();
+        } else if (e instanceof LiveExpression.Span) {
+          ((LiveExpression.Span) e).value = values[size - 1];
+          ((LiveExpression.Span) e).cached = true;
+        }
+      }
+      walk.node = null;
+      return values[0];
+    }
+
+    /**
+     * values[from, from + n) as operands for Operator.action.
+     */
+    private Evaluable[] args(double[] values, int from, int n) {
+      if (n >= args.length)
+        args = Arrays.copyOf(args, n + 1);
+      if (args[n] == null) {
+        args[n] = new Evaluable[n];
+        for (int k = 0; k < n; k++)
+          args[n][k] = new Value();
+      }
+      for (int k = 0; k < n; k++)
+        ((Value) args[n][k]).value = values[from + k];
+      return args[n];
+    }
+  }
+
+  /**
+   * Prints a tree without recursion: text still to append and nodes still to expand wait on one stack.
+   */
+  static class Printer {
+    static void print(Evaluable root, StringBuilder out, boolean explicitParens) {
+      Deque<Object> todo = new ArrayDeque<>();
+      todo.push(root);
+      while (!todo.isEmpty()) {
+        Object next = todo.pop();
+        if (next instanceof String) {
+          out.append((String) next);
+        } else if (next instanceof Operation) {
+          Operation o = (Operation) next;
+          String[] parts = o.op.parts;
+          // Pushed last to first.
+          if (explicitParens)
+            todo.push(")");
+          for (int k = o.operands.length; k >= 0; k--) {
+            if (!parts[k].isEmpty())
+              todo.push(parts[k]);
+            if (k > 0)
+              todo.push(o.operands[k - 1]);
+          }
+          if (explicitParens)
+            todo.push("(");
+        } else if (next instanceof Grouping) {
+          todo.push(" )");
+          todo.push(((Grouping) next).inner);
+          todo.push("( ");
+        } else if (next instanceof Expression) {
+          List<Evaluable> elements = ((Expression) next).elements;
+          for (int k = elements.size() - 1; k >= 0; k--) {
+            todo.push(elements.get(k));
+            if (k > 0)
+              todo.push(" ");
+          }
+        } else if (next instanceof LiveExpression.Span) {
+          todo.push(((LiveExpression.Span) next).inner);
+        } else {
+          ((Evaluable) next).print(out, explicitParens);
+        }
+      }
+    }
+  }
+
+  /**
+   * A value computed ahead of time, such as a folded constant subexpression.
+   */
+  static class Literal implements Evaluable {
+    final double value;
+    Literal(double value) {
+      this.value = value;
+    }
+    public Evaluable parse(StringWrapper input) {
+      throw new IllegalArgumentException("Literals are not parsed.");
+    }
+    public Evaluable parse(Tokens input) {
+      throw new IllegalArgumentException("Literals are not parsed.");
+    }
+    public double evalAsDouble() {
+      return value;
+    }
+    public void print(StringBuilder out, boolean explicitParens) {
+      // Written so it parses back to the same value.
+      String ret;
+      if (Double.isNaN(value))
+        ret = "(0/0)";
+      else if (Double.isInfinite(value))
+        ret = value > 0 ? "(1/0)" : "(-1/0)";
+      else if (value < 0 || Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0.0))
+        ret = "(" + value + ")";
+      else
+        ret = Double.toString(value);
+      out.append(explicitParens ? "(" + ret + ")" : ret);
+    }
+    public String toString() {
+      return toString(false);
+    }
+  }
+
+  /**
+   * Rewrites a parsed tree into a cheaper one with the same results: folds operations whose operands are all
+   * known into a Literal, and drops operations that are an identity in IEEE 754 (x*1, 1*x, x/1, x-0, x+-0,
+   * x^1, --x, +x; x^0 becomes 1). x+0 is kept, since -0+0 is +0.
+   */
+  static class Optimizer {
+    int nodesBefore;
+    int nodesAfter;
+
+    Evaluable optimize(Evaluable expr) {
+      nodesBefore = count(expr);
+      Evaluable ret = simplify(expr);
+      nodesAfter = count(ret);
+      if (PRINT_DEBUG)
+        System.out.println(this);
+      return ret;
+    }
+
+    private Evaluable simplify(Evaluable root) {
+      // Operands first; the simplified nodes wait on a stack until their parent is reached.
+      PostOrder walk = new PostOrder(root);
+      Evaluable[] done = new Evaluable[16];
+      int size = 0;
+      while (walk.next()) {
+        Evaluable e = walk.node;
+        if (e instanceof Operation) {
+          size -= walk.children;
+          done[size] = simplify((Operation) e, Arrays.copyOfRange(done, size, size + walk.children));
+          size++;
+        } else if (e instanceof Grouping) {
+          Evaluable inner = done[size - 1];
+          if (inner instanceof Operation) {
+            Grouping ret = new Grouping();
+            ret.inner = inner;
+            done[size - 1] = ret;
+          }
+        } else if (!(e instanceof Expression)) {
+          if (size == done.length)
+            done = Arrays.copyOf(done, size * 2);
+          done[size++] = e;
+        }
+      }
+      return done[0];
+    }
+
+    /**
+     * o with its operands replaced by their simplified forms, simplified.
+     */
+    private Evaluable simplify(Operation o, Evaluable[] operands) {
+      boolean known = true;
+      for (Evaluable operand : operands)
+        known &= isKnown(operand);
+      Operation ret = new Operation(o.op, operands);
+      if (known)
+        return new Literal(ret.evalAsDouble());
+
+      Operator op = o.op;
+      if (op == Operator.POS)
+        return operands[0];
+      if (op == Operator.NEG && unwrap(operands[0]) instanceof Operation && ((Operation) unwrap(operands[0])).op == Operator.NEG)
+        return ((Operation) unwrap(operands[0])).operands[0];
+      if (operands.length == 2) {
+        Evaluable left = operands[0];
+        Evaluable right = operands[1];
+        if ((op == Operator.MUL || op == Operator.DIV || op == Operator.POW) && is(right, 1))
+          return left;
+        if (op == Operator.MUL && is(left, 1))
+          return right;
+        if (op == Operator.SUB && is(right, 0.0))
+          return left;
+        if (op == Operator.ADD && is(right, -0.0))
+          return left;
+        if (op == Operator.ADD && is(left, -0.0))
+          return right;
+        if (op == Operator.POW && (is(right, 0.0) || is(right, -0.0)))
+          return new Literal(1);
+      }
+      return ret;
+    }
+
+    private static Evaluable unwrap(Evaluable e) {
+      while (e instanceof Grouping)
+        e = ((Grouping) e).inner;
+      return e;
+    }
+    private static boolean isKnown(Evaluable e) {
+      return e instanceof Numeral || e instanceof Constant || e instanceof Literal;
+    }
+    private static boolean is(Evaluable e, double value) {
+      return isKnown(e) && Double.doubleToRawLongBits(e.evalAsDouble()) == Double.doubleToRawLongBits(value);
+    }
+
+    static int count(Evaluable root) {
+      int ret = 0;
+      Deque<Evaluable> todo = new ArrayDeque<>();
+      todo.push(root);
+      while (!todo.isEmpty()) {
+        Evaluable e = todo.pop();
+        ret++;
+        if (e instanceof Expression)
+          ((Expression) e).elements.forEach(todo::push);
+        else if (e instanceof Grouping)
+          todo.push(((Grouping) e).inner);
+        else if (e instanceof Operation)
+          for (Evaluable operand : ((Operation) e).operands)
+            todo.push(operand);
+      }
+      return ret;
+    }
+
+    public String toString() {
+      return "Optimized " + nodesBefore + " nodes to " + nodesAfter + ".";
+    }
+
+    public static void test() {
+      Optimizer optimizer = new Optimizer();
+      assert optimizer.optimize(new Expression().parse(new StringWrapper("2*pi"))) instanceof Literal;
+      assert optimizer.nodesBefore == 4 && optimizer.nodesAfter == 1;
+      assert optimizer.optimize(new Expression().parse(new StringWrapper("log(1000)*x"))).toString().equals("3.0 * x");
+      assert optimizer.optimize(new Expression().parse(new StringWrapper("---x*1^1/1-0"))).toString().equals("-x");
+      assert optimizer.optimize(new Expression().parse(new StringWrapper("x+0"))).toString().equals("x + 0");
+      assert optimizer.optimize(new Expression().parse(new StringWrapper("(0-2)^3*x"))).toString().equals("(-8.0) * x");
+
+      String[] exprs = {"x*1", "1*x", "x/1", "x-0", "x+-0", "-0+x", "x^1", "x^0", "--x", "+x", "x+0", "0*x", "x*(2-1)",
+          "(x+y)*(3-2)+ln(e)*y", "-(-(x))", "2^x^(1/1)"};
+      double[] values = {0.0, -0.0, 1, -2.5, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+      for (String s : exprs) {
+        Tokens tokens = Tokens.lex(s);
+        Evaluable expr = new Expression().parse(tokens);
+        Evaluable optimized = optimizer.optimize(expr);
+        assert optimizer.nodesAfter <= optimizer.nodesBefore : s;
+        double[] v = tokens.variables.values;
+        for (double x : values)
+          for (double y : values) {
+            if (v.length > 0)
+              v[0] = x;
+            if (v.length > 1)
+              v[1] = y;
+            assert Double.compare(expr.evaluate(), optimized.evaluate()) == 0 : s + " at " + x + ", " + y;
+          }
+      }
+    }
+  }
+
+  /**
+   * Hash-consing: rebuilds a tree so structurally identical subtrees, such as every copy of ln(x+1) in a
+   * generated formula, become one shared node. evaluate() computes each shared node once, and the Compiler
+   * keeps a shared node's value in a local after its first use.
+   */
+  static class Dag {
+    final Evaluable root;
+    final int nodesBefore;
+    // The unique nodes, operands before the nodes using them; operands[i] indexes the operands of nodes[i].
+    private final Evaluable[] nodes;
+    private final int[][] operands;
+    private final double[] known;
+
+    Dag(Evaluable tree) {
+      Map<String, Integer> ids = new HashMap<>();
+      Map<Operator, Integer> operators = new IdentityHashMap<>();
+      List<Evaluable> unique = new ArrayList<>();
+      List<int[]> args = new ArrayList<>();
+      StringBuilder key = new StringBuilder();
+      PostOrder walk = new PostOrder(tree);
+      int[] done = new int[16];
+      int size = 0;
+      int before = 0;
+      while (walk.next()) {
+        Evaluable e = walk.node;
+        boolean inner = e instanceof Operation || e instanceof Grouping;
+        if (!inner && walk.children > 0)
+          continue; // an Expression stands for its first element, already on the stack
+        before++;
+        int n = inner ? walk.children : 0;
+        size -= n;
+        int[] children = Arrays.copyOfRange(done, size, size + n);
+
+        key.setLength(0);
+        if (e instanceof Operation)
+          key.append('O').append(operators.computeIfAbsent(((Operation) e).op, (op) -> operators.size()));
+        else if (e instanceof Grouping)
+          key.append('G');
+        else if (e instanceof Variable)
+          key.append('V').append(((Variable) e).index);
+        else if (e instanceof Literal)
+          key.append('L').append(Double.doubleToRawLongBits(((Literal) e).value));
+        else if (e instanceof Numeral || e instanceof Constant)
+          key.append(e.getClass().getSimpleName()).append(' ').append(e);
+        else
+          key.append('?').append(unique.size()); // not known to be pure: never shared
+        for (int child : children)
+          key.append(',').append(child);
+
+        Integer id = ids.get(key.toString());
+        if (id == null) {
+          id = unique.size();
+          ids.put(key.toString(), id);
+          unique.add(rebuild(e, children, unique));
+          args.add(children);
+        }
+        if (size == done.length)
+          done = Arrays.copyOf(done, size * 2);
+        done[size++] = id;
+      }
+      nodes = unique.toArray(new Evaluable[0]);
+      operands = args.toArray(new int[0][]);
+      root = nodes[done[0]];
+      nodesBefore = before;
+      known = new double[nodes.length];
+      for (int i = 0; i < nodes.length; i++)
+        if (nodes[i] instanceof Numeral || nodes[i] instanceof Constant || nodes[i] instanceof Literal)
+          known[i] = nodes[i].evalAsDouble();
+    }
+
+    /**
+     * e over the canonical forms of its operands; e itself when those are what it already has.
+     */
+    private static Evaluable rebuild(Evaluable e, int[] children, List<Evaluable> unique) {
+      if (e instanceof Operation) {
+        Operation o = (Operation) e;
+        Evaluable[] canonical = new Evaluable[children.length];
+        boolean same = true;
+        for (int k = 0; k < children.length; k++) {
+          canonical[k] = unique.get(children[k]);
+          same &= canonical[k] == o.operands[k];
+        }
+        return same ? o : new Operation(o.op, canonical);
+      }
+      if (e instanceof Grouping && ((Grouping) e).inner != unique.get(children[0])) {
+        Grouping ret = new Grouping();
+        ret.inner = unique.get(children[0]);
+        return ret;
+      }
+      return e;
+    }
+
+    int size() {
+      return nodes.length;
+    }
+
+    /**
+     * Nodes in the tree per node in the Dag; 1 when nothing was shared.
+     */
+    double ratio() {
+      return (double) nodesBefore / nodes.length;
+    }
+
+    /**
+     * The value with the given variable bindings. Works on its own copy of every intermediate value, so any
+     * number of threads can evaluate at once.
+     */
+    double evaluate(double[] bindings) {
+      double[] values = new double[nodes.length];
+      double[] gathered = new double[3];
+      Evaluable[][] args = new Evaluable[3][];
+      for (int i = 0; i < nodes.length; i++) {
+        Evaluable e = nodes[i];
+        int[] from = operands[i];
+        if (e instanceof Operation) {
+          Operator op = ((Operation) e).op;
+          int n = from.length;
+          if (op.binary != null) {
+            values[i] = op.binary.applyAsDouble(values[from[0]], values[from[1]]);
+            continue;
+          }
+          if (op.unary != null) {
+            values[i] = op.unary.applyAsDouble(values[from[0]]);
+            continue;
+          }
+          if (op.nary != null) {
+            if (n > gathered.length)
+              gathered = new double[n];
+            for (int k = 0; k < n; k++)
+              gathered[k] = values[from[k]];
+            values[i] = op.nary.applyAsDouble(gathered, 0);
+            continue;
+          }
+          if (n >= args.length)
+            args = Arrays.copyOf(args, n + 1);
+          if (args[n] == null) {
+            args[n] = new Evaluable[n];
+            for (int k = 0; k < n; k++)
+              args[n][k] = new Evaluator.Value();
+          }
+          for (int k = 0; k < n; k++)
+            ((Evaluator.Value) args[n][k]).value = values[from[k]];
+          values[i] = op.action.apply(args[n]);
+        } else if (e instanceof Grouping) {
+          values[i] = values[from[0]];
+        } else if (e instanceof Variable) {
+          values[i] = bindings[((Variable) e).index];
+        } else if (e instanceof Numeral || e instanceof Constant || e instanceof Literal) {
+          values[i] = known[i];
+        } else {
+          values[i] = e.evalAsDouble();
+        }
+      }
+      return values[nodes.length - 1];
+    }
+
+    public String toString() {
+      return "Shared " + nodesBefore + " nodes as " + nodes.length + String.format(" (%.2fx).", ratio());
+    }
+
+    public static void test() {
+      Tokens tokens = Tokens.lex("ln(x+1)*2 + ln(x+1)/ln(x + 1) - (y*ln(x+1))");
+      Evaluable tree = new Expression().parse(tokens);
+      Dag dag = new Dag(tree);
+      // Four copies of ln ( x+1 ) are five nodes each; with *2, /, +, -, ( y* ) that is 28, of which 13 differ.
+      assert dag.nodesBefore == 28 && dag.size() == 13 : dag;
+      assert dag.ratio() > 2;
+      assert dag.root.toString().equals(tree.toString());
+      Operation sum = (Operation) dag.root;
+      Operation product = (Operation) ((Operation) sum.operands[0]).operands[0];
+      Operation quotient = (Operation) ((Operation) sum.operands[0]).operands[1];
+      assert product.operands[0] == quotient.operands[0] && quotient.operands[0] == quotient.operands[1];
+
+      double[] values = {0, -1, 2.5, Double.NaN, -0.0, 1e300};
+      Compiled compiled = Compiler.compile(dag.root, tokens.variables);
+      for (double x : values)
+        for (double y : values) {
+          tokens.variables.values[0] = x;
+          tokens.variables.values[1] = y;
+          double expected = tree.evaluate();
+          double[] bindings = {x, y};
+          assert Double.compare(dag.evaluate(bindings), expected) == 0 : x + ", " + y;
+          assert Double.compare(dag.root.evaluate(), expected) == 0 : x + ", " + y;
+          assert Double.compare(compiled.eval(bindings), expected) == 0 : x + ", " + y;
+          assert Double.compare(compiled.eval(x, y), expected) == 0 : x + ", " + y;
+        }
+
+      // Numerals are told apart by how they are written, so printing is unchanged.
+      assert new Dag(new Expression().parse(new StringWrapper("1 + 1.0 + 1"))).size() == 4;
+      assert new Dag(new Expression().parse(new StringWrapper("x"))).ratio() == 1;
+
+      // A chain where each level uses the one below twice: exponential as a tree, linear as a Dag. Only with
+      // every shared level loaded from a local does it fit in one method.
+      String s = "x";
+      for (int i = 0; i < 16; i++)
+        s = "(" + s + ")*(" + s + ")";
+      Formula f = Main.compile(s);
+      f.variables.values[0] = 1.00001;
+      assert f.eval(1.00001) == f.expr.evaluate() && f.eval(1.00001) > 1.5;
+      assert new Dag(f.expr).size() == 32; // x, x*x, then a ( ) and a * per level
+      assert f.compiled.getClass().getName().startsWith("Main$CompiledExpression");
+    }
+  }
+
+  /**
+   * A formula that stays evaluated while its variables change one at a time, as a spreadsheet cell does. Each
+   * node of its Dag keeps its last value and a dirty flag. set() marks the path from the variable up to the
+   * root dirty, and value() recomputes only dirty nodes, so one changed input of many costs O(depth) instead
+   * of O(size). Operators with a Shortcut evaluate only the operand they pick, and a change below an operand
+   * they didn't pick leaves them clean.
+   */
+  static class Incremental {
+    private final Evaluable[] nodes;
+    private final int[][] operands;
+    private final int root;
+    private final List<String> names;
+    // For each node, the nodes using it; for each variable, its node, or -1 if the formula doesn't use it.
+    private final int[][] users;
+    private final int[] leaves;
+    private final double[] bindings;
+    private final double[] values;
+    private final boolean[] dirty;
+    // For a node with a Shortcut, the operand its value came from; -1 if it took all of them.
+    private final int[] chosen;
+    private int[] stack = new int[16];
+    private double[] gathered = new double[3];
+    // Nodes recomputed by the last value(), for tests and benchmarks.
+    int recomputed;
+
+    Incremental(Evaluable tree, Variables variables) {
+      Dag dag = new Dag(tree);
+      nodes = dag.nodes;
+      operands = dag.operands;
+      int n = nodes.length;
+      int top = n - 1;
+      while (nodes[top] != dag.root)
+        top--;
+      root = top;
+      names = variables.names;
+      int[] counts = new int[n];
+      for (int[] from : operands)
+        for (int k : from)
+          counts[k]++;
+      users = new int[n][];
+      for (int i = 0; i < n; i++)
+        users[i] = new int[counts[i]];
+      for (int i = 0; i < n; i++)
+        for (int k : operands[i])
+          users[k][--counts[k]] = i;
+      bindings = variables.values.clone();
+      leaves = new int[bindings.length];
+      Arrays.fill(leaves, -1);
+      for (int i = 0; i < n; i++)
+        if (nodes[i] instanceof Variable)
+          leaves[((Variable) nodes[i]).index] = i;
+      values = dag.known.clone();
+      dirty = new boolean[n];
+      Arrays.fill(dirty, true);
+      chosen = new int[n];
+      Arrays.fill(chosen, -1);
+    }
+
+    /**
+     * Gives variable {@code index} a new value. Nothing is recomputed until value() is called.
+     */
+    void set(int index, double value) {
+      if (Double.doubleToRawLongBits(bindings[index]) == Double.doubleToRawLongBits(value))
+        return;
+      bindings[index] = value;
+      int leaf = leaves[index];
+      if (leaf < 0 || dirty[leaf])
+        return;
+      values[leaf] = value;
+      // A clean node's operands are clean, so the walk can stop at any node that is already dirty.
+      int size = 0;
+      stack[size++] = leaf;
+      while (size > 0) {
+        int node = stack[--size];
+        for (int user : users[node]) {
+          if (dirty[user] || !uses(user, node))
+            continue;
+          dirty[user] = true;
+          if (size == stack.length)
+            stack = Arrays.copyOf(stack, size * 2);
+          stack[size++] = user;
+        }
+      }
+    }
+
+    void set(String name, double value) {
+      int index = names.indexOf(name);
+      if (index < 0)
+        throw new IllegalArgumentException("No variable " + name + " in " + names + ".");
+      set(index, value);
+    }
+
+    /**
+     * Whether the last value of user depended on node.
+     */
+    private boolean uses(int user, int node) {
+      int[] from = operands[user];
+      int k = chosen[user];
+      return k < 0 || from[0] == node || from[k] == node;
+    }
+
+    double value() {
+      recomputed = 0;
+      int size = 0;
+      stack[size++] = root;
+      while (size > 0) {
+        int i = stack[size - 1];
+        if (!dirty[i]) {
+          size--;
+          continue;
+        }
+        int[] from = operands[i];
+        int wanted = -1;
+        Operator op = nodes[i] instanceof Operation ? ((Operation) nodes[i]).op : null;
+        if (op != null && op.shortcut != null) {
+          // The first operand decides which of the others, if any, is needed.
+          if (dirty[from[0]]) {
+            wanted = from[0];
+          } else {
+            int k = op.shortcut.operand(values[from[0]]);
+            chosen[i] = k;
+            if (k >= 0 && dirty[from[k]])
+              wanted = from[k];
+            else if (k >= 0)
+              from = null;
+          }
+        }
+        if (wanted < 0 && from != null)
+          for (int k : from)
+            if (dirty[k]) {
+              wanted = k;
+              break;
+            }
+        if (wanted >= 0) {
+          if (size == stack.length)
+            stack = Arrays.copyOf(stack, size * 2);
+          stack[size++] = wanted;
+          continue;
+        }
+        values[i] = from == null ? values[operands[i][chosen[i]]] : compute(i, op);
+        dirty[i] = false;
+        recomputed++;
+        size--;
+      }
+      return values[root];
+    }
+
+    /**
+     * The value of node i, its operands all clean.
+     */
+    private double compute(int i, Operator op) {
+      Evaluable e = nodes[i];
+      int[] from = operands[i];
+      if (op != null) {
+        int n = from.length;
+        if (op.binary != null)
+          return op.binary.applyAsDouble(values[from[0]], values[from[1]]);
+        if (op.unary != null)
+          return op.unary.applyAsDouble(values[from[0]]);
+        if (n > gathered.length)
+          gathered = new double[n];
+        for (int k = 0; k < n; k++)
+          gathered[k] = values[from[k]];
+        return op.applyAsDouble(gathered, 0, n);
+      }
+      if (e instanceof Grouping)
+        return values[from[0]];
+      if (e instanceof Variable)
+        return bindings[((Variable) e).index];
+      if (e instanceof Numeral || e instanceof Constant || e instanceof Literal)
+        return values[i];
+      return e.evalAsDouble();
+    }
+
+    private static void sum(StringBuilder out, int from, int to) {
+      if (to - from == 1) {
+        out.append("v").append(from);
+        return;
+      }
+      out.append('(');
+      sum(out, from, (from + to) / 2);
+      out.append(")+(");
+      sum(out, (from + to) / 2, to);
+      out.append(')');
+    }
+
+    public static void test() {
+      // A sheet of 1024 inputs: changing one recomputes its path, ten levels of sums and their parentheses.
+      StringBuilder source = new StringBuilder();
+      sum(source, 0, 1 << 10);
+      Formula sheet = Main.compile(source.toString());
+      Incremental incremental = sheet.incremental();
+      double[] bindings = new double[1 << 10];
+      for (int i = 0; i < bindings.length; i++) {
+        bindings[i] = i;
+        incremental.set(i, i);
+      }
+      assert incremental.value() == sheet.eval(bindings);
+      assert incremental.recomputed > 3_000 : incremental.recomputed;
+      incremental.set(700, -1);
+      bindings[700] = -1;
+      assert incremental.value() == sheet.eval(bindings);
+      assert incremental.recomputed <= 21 : incremental.recomputed;
+      assert incremental.value() == sheet.eval(bindings) && incremental.recomputed == 0;
+      incremental.set(700, -1);
+      assert incremental.value() == sheet.eval(bindings) && incremental.recomputed == 0;
+
+      // The branch not taken is neither evaluated nor invalidated.
+      Formula f = Main.compile("c ? x * 2 + 1 : y * 3");
+      incremental = f.incremental();
+      incremental.set(0, 1);
+      incremental.set(1, 5);
+      assert incremental.value() == 11 && incremental.recomputed == 7 : incremental.recomputed;
+      incremental.set(2, 4);
+      assert incremental.value() == 11 && incremental.recomputed == 0;
+      incremental.set(0, 0);
+      assert incremental.value() == 12 && incremental.recomputed == 4 : incremental.recomputed;
+      incremental.set(1, 6);
+      assert incremental.value() == 12 && incremental.recomputed == 0;
+
+      // Random changes to generated formulas, shared subtrees and conditionals included, agree with Formula.
+      Random random = new Random(23);
+      Fuzz fuzz = new Fuzz(23);
+      for (int n = 0; n < 300; n++) {
+        f = Main.compile(Fuzz.render(fuzz.node(6), random));
+        incremental = f.incremental();
+        double[] values = new double[f.variables.names.size()];
+        Arrays.fill(values, Double.NaN);
+        for (int step = 0; step < 20; step++) {
+          if (values.length > 0) {
+            int k = random.nextInt(values.length);
+            values[k] = random.nextInt(3) == 0 ? 0 : random.nextDouble() * 4 - 2;
+            incremental.set(k, values[k]);
+          }
+          assert Double.compare(incremental.value(), f.eval(values)) == 0 : f + " at " + Arrays.toString(values);
+        }
+      }
+    }
+  }
+
+  /**
+   * A parsed expression turned into straight-line code returning a primitive double. Bindings are the values
+   * of its variables, in order of first appearance.
+   */
+  interface Compiled {
+    double[] NO_BINDINGS = new double[0];
+
+    double eval(double[] bindings);
+    default double eval() {
+      return eval(NO_BINDINGS);
+    }
+    default double eval(double x) {
+      return eval(new double[]{x});
+    }
+    default double eval(double x, double y) {
+      return eval(new double[]{x, y});
+    }
+  }
+
+  /**
+   * Compiles an Evaluable tree to JVM bytecode for a hidden class implementing Compiled, so repeated
+   * evaluation runs without interface dispatch or boxing. An Operation reached along more than one path, as in a
+   * Dag, is computed once into a local. Anything it can't translate (or that is too big for one method) falls
+   * back to evaluating a Dag of the tree.
+   */
+  static class Compiler {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final int MAX_CODE = 65535;
+
+    private final Map<String, Integer> pool = new HashMap<>();
+    private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private final DataOutputStream cp = new DataOutputStream(constants);
+    private int poolSize = 1;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+    // How Variables are loaded: from the double[] argument, or from one or two double arguments.
+    private static final String[] SIGNATURES = {"([D)D", "(D)D", "(DD)D"};
+    private static final int[] LOCALS = {2, 3, 5};
+    private int signature;
+    private Set<Evaluable> shared;
+    // Shared operations already emitted in this method, with the local holding their value.
+    private final Map<Evaluable, Integer> stored = new IdentityHashMap<>();
+
+    static Compiled compile(Evaluable expr) {
+      return compile(expr, new Variables());
+    }
+    static Compiled compile(Evaluable expr, Variables variables) {
+      try {
+        return new Compiler().define(expr, variables.names.size());
+      } catch (UnsupportedOperationException e) {
+        if (PRINT_DEBUG)
+          System.out.println("Interpreting instead: " + e);
+        return new Dag(expr)::evaluate;
+      }
+    }
+
+    private Compiled define(Evaluable expr, int variables) {
+      // Two more for the dup2 before storing a shared value.
+      int maxStack = 2 * depth(expr) + 2;
+      if (maxStack > 0xffff)
+        throw new UnsupportedOperationException("Expression too deep for one method.");
+      shared = shared(expr);
+      // The (D)D and (DD)D overloads only exist when every variable fits in their arguments.
+      int methods = variables <= 1 ? 3 : variables == 2 ? 2 : 1;
+      byte[][] bodies = new byte[methods][];
+      int[] maxLocals = new int[methods];
+      for (signature = 0; signature < methods; signature++) {
+        code.reset();
+        emit(expr);
+        maxLocals[signature] = LOCALS[signature] + 2 * stored.size();
+        code.write(0xaf); // dreturn
+        if (code.size() > MAX_CODE)
+          throw new UnsupportedOperationException("Expression too large for one method.");
+        bodies[signature] = code.toByteArray();
+      }
+
+      int thisClass = classRef("Main$CompiledExpression");
+      int superClass = classRef("java/lang/Object");
+      int iface = classRef("Main$Compiled");
+      int superInit = methodRef("java/lang/Object", "<init>", "()V");
+      int init = utf8("<init>");
+      int initType = utf8("()V");
+      int eval = utf8("eval");
+      int[] evalTypes = new int[methods];
+      for (int i = 0; i < methods; i++)
+        evalTypes[i] = utf8(SIGNATURES[i]);
+      int codeAttr = utf8("Code");
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(61);
+        out.writeShort(poolSize);
+        constants.writeTo(out);
+        out.writeShort(0x0031); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(iface);
+        out.writeShort(0); // fields
+        out.writeShort(1 + methods);
+
+        byte[] initCode = {
+            0x2a, // aload_0
+            (byte) 0xb7, (byte) (superInit >>> 8), (byte) superInit, // invokespecial
+            (byte) 0xb1 // return
+        };
+        writeMethod(out, 0x0001, init, initType, codeAttr, 1, 1, initCode); // public
+        for (int i = 0; i < methods; i++)
+          writeMethod(out, 0x0011, eval, evalTypes[i], codeAttr, maxStack, maxLocals[i], bodies[i]); // public final
+
+        out.writeShort(0); // class attributes
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+
+      try {
+        MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(bytes.toByteArray(), true);
+        return (Compiled) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+      } catch (Throwable e) {
+        throw new UnsupportedOperationException("Could not define class: " + e, e);
+      }
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int type, int codeAttr, int maxStack, int maxLocals, byte[] code) throws IOException {
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(type);
+      out.writeShort(1);
+      out.writeShort(codeAttr);
+      out.writeInt(12 + code.length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeShort(0); // exception table
+      out.writeShort(0); // code attributes
+    }
+
+    private void emit(Evaluable root) {
+      stored.clear();
+      PostOrder walk = new PostOrder(root) {
+        @Override
+        boolean descend(Evaluable e) {
+          return !stored.containsKey(e);
+        }
+      };
+      while (walk.next())
+        emitNode(walk.node);
+    }
+
+    /**
+     * Operations reached along more than one path from root.
+     */
+    static Set<Evaluable> shared(Evaluable root) {
+      Set<Evaluable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+      Set<Evaluable> ret = Collections.newSetFromMap(new IdentityHashMap<>());
+      PostOrder walk = new PostOrder(root) {
+        @Override
+        boolean descend(Evaluable e) {
+          if (seen.add(e))
+            return true;
+          while (e instanceof Grouping)
+            e = ((Grouping) e).inner;
+          if (e instanceof Operation)
+            ret.add(e);
+          return false;
+        }
+      };
+      while (walk.next())
+        ;
+      return ret;
+    }
+
+    /**
+     * Code for e alone, its operands already on the stack.
+     */
+    private void emitNode(Evaluable e) {
+      Integer local = stored.get(e);
+      if (local != null) {
+        localOp(0x18, local); // dload
+      } else if (e instanceof Numeral || e instanceof Constant || e instanceof Literal) {
+        code.write(0x14); // ldc2_w
+        writeShort(doubleConst(e.evalAsDouble()));
+      } else if (e instanceof Variable) {
+        int index = ((Variable) e).index;
+        if (signature == 0) {
+          code.write(0x2b); // aload_1
+          if (index <= Short.MAX_VALUE) {
+            code.write(0x11); // sipush
+            writeShort(index);
+          } else {
+            code.write(0x13); // ldc_w
+            writeShort(intConst(index));
+          }
+          code.write(0x31); // daload
+        } else {
+          code.write(index == 0 ? 0x27 : 0x29); // dload_1 or dload_3
+        }
+      } else if (e instanceof Grouping || e instanceof Expression) {
+        ; // value of the operand
+      } else if (e instanceof Operation) {
+        Operation o = (Operation) e;
+        if (o.op == Operator.ADD)
+          code.write(0x63); // dadd
+        else if (o.op == Operator.SUB)
+          code.write(0x67); // dsub
+        else if (o.op == Operator.MUL)
+          code.write(0x6b); // dmul
+        else if (o.op == Operator.DIV)
+          code.write(0x6f); // ddiv
+        else if (o.op == Operator.REM || o.op == Operator.MOD)
+          code.write(0x73); // drem
+        else if (o.op == Operator.NEG)
+          code.write(0x77); // dneg
+        else if (o.op == Operator.POS)
+          ; // identity
+        else if (o.op == Operator.POW)
+          invokeMath("pow", "(DD)D");
+        else if (o.op == Operator.LN)
+          invokeMath("log", "(D)D");
+        else if (o.op == Operator.LOG)
+          invokeMath("log10", "(D)D");
+        else if (o.op == Operator.ABS)
+          invokeMath("abs", "(D)D");
+        else if (o.op == Operator.SQRT)
+          invokeMath("sqrt", "(D)D");
+        else if (o.op == Operator.SIN)
+          invokeMath("sin", "(D)D");
+        else if (o.op == Operator.COS)
+          invokeMath("cos", "(D)D");
+        else if (o.op == Operator.MIN)
+          invokeMath("min", "(DD)D");
+        else if (o.op == Operator.MAX)
+          invokeMath("max", "(DD)D");
+        else if (o.op == Operator.IF)
+          invoke("Main$Operator", "select", "(DDD)D");
+        else
+          throw new UnsupportedOperationException("No bytecode for operator " + o.op.token);
+      } else {
+        throw new UnsupportedOperationException("No bytecode for " + e.getClass().getSimpleName());
+      }
+      if (local == null && shared.contains(e)) {
+        local = LOCALS[signature] + 2 * stored.size();
+        if (local + 2 <= 0xffff) {
+          code.write(0x5c); // dup2
+          localOp(0x39, local); // dstore
+          stored.put(e, local);
+        }
+      }
+      if (code.size() > MAX_CODE)
+        throw new UnsupportedOperationException("Expression too large for one method.");
+    }
+
+    /**
+     * Operand stack entries needed to evaluate e, where every double is one entry.
+     */
+    static int depth(Evaluable root) {
+      PostOrder walk = new PostOrder(root);
+      int[] depths = new int[16];
+      int size = 0;
+      while (walk.next()) {
+        if (walk.node instanceof Operation) {
+          size -= walk.children;
+          int ret = 0;
+          for (int i = 0; i < walk.children; i++)
+            ret = Math.max(ret, i + depths[size + i]);
+          depths[size++] = ret;
+        } else if (walk.children == 0) {
+          if (size == depths.length)
+            depths = Arrays.copyOf(depths, size * 2);
+          depths[size++] = 1;
+        }
+      }
+      return depths[0];
+    }
+
+    private void localOp(int opcode, int local) {
+      if (local > 0xff) {
+        code.write(0xc4); // wide
+        code.write(opcode);
+        writeShort(local);
+      } else {
+        code.write(opcode);
+        code.write(local);
+      }
+    }
+    private void invokeMath(String name, String type) {
+      invoke("java/lang/Math", name, type);
+    }
+    private void invoke(String owner, String name, String type) {
+      code.write(0xb8); // invokestatic
+      writeShort(methodRef(owner, name, type));
+    }
+    private void writeShort(int v) {
+      code.write(v >>> 8);
+      code.write(v);
+    }
+
+    private int utf8(String s) {
+      return constant("U" + s, 1, () -> {
+        cp.writeByte(1);
+        cp.writeUTF(s);
+      });
+    }
+    private int classRef(String name) {
+      int n = utf8(name);
+      return constant("C" + name, 1, () -> {
+        cp.writeByte(7);
+        cp.writeShort(n);
+      });
+    }
+    private int methodRef(String owner, String name, String type) {
+      int c = classRef(owner);
+      int n = utf8(name);
+      int t = utf8(type);
+      int nt = constant("N" + name + type, 1, () -> {
+        cp.writeByte(12);
+        cp.writeShort(n);
+        cp.writeShort(t);
+      });
+      return constant("M" + owner + "." + name + type, 1, () -> {
+        cp.writeByte(10);
+        cp.writeShort(c);
+        cp.writeShort(nt);
+      });
+    }
+    private int intConst(int i) {
+      return constant("I" + i, 1, () -> {
+        cp.writeByte(3);
+        cp.writeInt(i);
+      });
+    }
+    private int doubleConst(double d) {
+      long bits = Double.doubleToRawLongBits(d);
+      return constant("D" + bits, 2, () -> {
+        cp.writeByte(6);
+        cp.writeLong(bits);
+      });
+    }
+
+    private interface Entry {
+      void write() throws IOException;
+    }
+    private int constant(String key, int slots, Entry entry) {
+      Integer ret = pool.get(key);
+      if (ret != null)
+        return ret;
+      if (poolSize + slots > 0xffff)
+        throw new UnsupportedOperationException("Too many constants for one class.");
+      try {
+        entry.write();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      pool.put(key, poolSize);
+      poolSize += slots;
+      return poolSize - slots;
+    }
+
+    public static void test() {
+      String[] exprs = {"1+2*3", "-2^2", "2^3^2", "ln2^2", "2*-3^2", "--3", "2+-+-3", "1-2-3", "8/4/2", "5%3", "7mod3*2",
+          "log1000", "ln(e)", "2pi", "pi*2", "(1+2)*3", "((2))", "2*(3+4)-ln(2)", "-ln(2)", "-(-(-1))", "1/0", "0/0",
+          "ln(0-1)", "1.23456e5", "55E-2", "-0", "+5", "abs(0-3)", "sqrt 2", "sin(pi)+cos pi", "min(1, 0/0)",
+          "max(-0, 0)", "1 ? 2 : 3", "0 ? 1 : 0/0 ? 3 : 4"};
+      for (String s : exprs) {
+        Evaluable expr = new Expression().parse(new StringWrapper(s));
+        Compiled compiled = compile(expr);
+        assert Double.compare(compiled.eval(), expr.evaluate()) == 0 : s;
+      }
+      // Operators without bytecode fall back to the interpreter.
+      Operator half = new Operator(-4, 0, "half", 1, (arr) -> arr[0].evaluate() / 2);
+      Evaluable expr = new Operation(Operator.ADD, new Operation(half, new Expression().parse(new StringWrapper("3"))), new Expression().parse(new StringWrapper("1")));
+      assert compile(expr).eval() == 2.5;
+
+      Formula f = Main.compile("3*x^2+y");
+      assert f.variables().equals(Arrays.asList("x", "y"));
+      assert f.eval(2, 1) == 13;
+      assert f.asBinary().applyAsDouble(1, 4) == 7;
+      assert Main.compile("$rate*2").asUnary().applyAsDouble(1.5) == 3;
+      assert Main.compile("x*x-x").eval(3) == 6;
+      // Names starting like a constant are names; runs made only of constants and operators are not.
+      Formula names = Main.compile("epsilon + pivot * exp - x*eps");
+      assert names.variables().equals(List.of("epsilon", "pivot", "exp", "x", "eps")) : names.variables();
+      assert names.eval(1, 2, 3, 4, 5) == -13;
+      assert Main.compile("pimode*E").eval() == Math.PI % (Math.E * Math.E);
+      // A formula is the whole input: whatever the parse leaves over is an error, not silently dropped.
+      String[][] rest = {{"1+2)", ")"}, {"x e", "e"}, {"1 2", "2"}, {"1,2", ","}, {"max(1,2),3", ","}};
+      for (String[] c : rest) {
+        try {
+          Main.compile(c[0]);
+          assert false : c[0];
+        } catch (ParseFailedException e) {
+          assert e.getMessage().equals("Unexpected " + c[1] + " after the expression in \"" + c[0] + "\".") : e.getMessage();
+        }
+      }
+      try {
+        Main.compile("x\u00b2");
+        assert false;
+      } catch (ParseFailedException e) {
+        assert e.getMessage().equals("Unexpected character '\u00b2' at 1.") : e.getMessage();
+      }
+      expr = new Operation(Operator.ADD, new Operation(half, f.expr), new Expression().parse(new StringWrapper("1")));
+      assert compile(expr, f.variables).eval(new double[]{2, 1}) == 7.5;
+
+      // Indices past sipush's signed 16 bits load from the constant pool.
+      Variables many = new Variables();
+      for (int i = 0; i < 40_000; i++)
+        many.indexOf("v" + i);
+      String far = "v32767 - v32768 * v39999";
+      Compiled compiled = compile(new Expression().parse(Tokens.lex(far, 0, far.length(), many, Tokens.NO_SPANS, Tokens.NONE, Limits.DEFAULT)), many);
+      assert compiled.getClass().isHidden();
+      double[] values = new double[40_000];
+      values[32767] = 1;
+      values[32768] = 2;
+      values[39999] = 3;
+      assert compiled.eval(values) == -5;
+    }
+  }
+
+  /**
+   * A tree flattened to postfix code for a stack machine: one opcode byte per node, an int argument for the
+   * ones that load or store, and a pool of the constants. A few bytes a node instead of a few objects, so
+   * millions of formulas can stay resident; write() and map() keep them on disk in the same form.
+   */
+  static class Postfix {
+    private static final byte CONST = 0, VAR = 1, STORE = 2, LOAD = 3, ADD = 4, SUB = 5, MUL = 6, DIV = 7, REM = 8,
+        POW = 9, NEG = 10, LN = 11, LOG = 12, ABS = 13, SQRT = 14, SIN = 15, COS = 16, MIN = 17, MAX = 18, IF = 19;
+    // Values each opcode takes off the stack.
+    private static final byte[] OPERANDS = {0, 0, 1, 0, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 2, 2, 3};
+    private static final int MAGIC = 0x50465831; // "PFX1"
+    private static final ThreadLocal<double[][]> STACK = ThreadLocal.withInitial(() -> new double[][]{new double[64]});
+
+    final String[] variables;
+    private final byte[] code;
+    private final int[] args;
+    private final double[] constants;
+    // Stack entries needed, and slots after them for values of shared operations (STORE and LOAD).
+    private final int maxStack;
+    private final int slots;
+
+    /**
+     * Flattens root, whose Variables index into names; an Operation shared as in a Dag is computed once.
+     */
+    Postfix(Evaluable root, Variables names) {
+      ByteArrayOutputStream code = new ByteArrayOutputStream();
+      int[] args = new int[16];
+      int size = 0;
+      Map<Long, Integer> pool = new HashMap<>();
+      double[] constants = new double[4];
+      Set<Evaluable> shared = Compiler.shared(root);
+      Map<Evaluable, Integer> stored = new IdentityHashMap<>();
+      PostOrder walk = new PostOrder(root) {
+        @Override
+        boolean descend(Evaluable e) {
+          return !stored.containsKey(e);
+        }
+      };
+      while (walk.next()) {
+        Evaluable e = walk.node;
+        int op;
+        int arg = -1;
+        if (stored.containsKey(e)) {
+          op = LOAD;
+          arg = stored.get(e);
+        } else if (e instanceof Numeral || e instanceof Constant || e instanceof Literal) {
+          double value = e.evalAsDouble();
+          op = CONST;
+          arg = pool.computeIfAbsent(Double.doubleToRawLongBits(value), (bits) -> pool.size());
+          if (arg == constants.length)
+            constants = Arrays.copyOf(constants, arg * 2);
+          constants[arg] = value;
+        } else if (e instanceof Variable) {
+          op = VAR;
+          arg = ((Variable) e).index;
+        } else if (e instanceof Grouping || e instanceof Expression) {
+          continue; // value of the operand
+        } else if (e instanceof Operation) {
+          Operator o = ((Operation) e).op;
+          if (o == Operator.POS)
+            op = -1;
+          else if (o == Operator.ADD)
+            op = ADD;
+          else if (o == Operator.SUB)
+            op = SUB;
+          else if (o == Operator.MUL)
+            op = MUL;
+          else if (o == Operator.DIV)
+            op = DIV;
+          else if (o == Operator.REM || o == Operator.MOD)
+            op = REM;
+          else if (o == Operator.POW)
+            op = POW;
+          else if (o == Operator.NEG)
+            op = NEG;
+          else if (o == Operator.LN)
+            op = LN;
+          else if (o == Operator.LOG)
+            op = LOG;
+          else if (o == Operator.ABS)
+            op = ABS;
+          else if (o == Operator.SQRT)
+            op = SQRT;
+          else if (o == Operator.SIN)
+            op = SIN;
+          else if (o == Operator.COS)
+            op = COS;
+          else if (o == Operator.MIN)
+            op = MIN;
+          else if (o == Operator.MAX)
+            op = MAX;
+          else if (o == Operator.IF)
+            op = IF;
+          else
+            throw new UnsupportedOperationException("No opcode for operator " + o.token);
+        } else {
+          throw new UnsupportedOperationException("No opcode for " + e.getClass().getSimpleName());
+        }
+        if (op >= 0)
+          code.write(op);
+        // Room for arg and a STORE's slot.
+        if (size + 2 > args.length)
+          args = Arrays.copyOf(args, args.length * 2);
+        if (arg >= 0)
+          args[size++] = arg;
+        if (op != LOAD && shared.contains(e)) {
+          code.write(STORE);
+          args[size++] = stored.size();
+          stored.put(e, stored.size());
+        }
+      }
+      this.variables = names.names.toArray(new String[0]);
+      this.code = code.toByteArray();
+      this.args = Arrays.copyOf(args, size);
+      this.constants = Arrays.copyOf(constants, pool.size());
+      this.slots = stored.size();
+      this.maxStack = verify();
+    }
+
+    private Postfix(String[] variables, byte[] code, int[] args, double[] constants, int slots) {
+      this.variables = variables;
+      this.code = code;
+      this.args = args;
+      this.constants = constants;
+      this.slots = slots;
+      this.maxStack = verify();
+    }
+
+    /**
+     * Checks that the code leaves one value and only uses what it has, so eval() can trust it; returns the
+     * stack entries it needs.
+     */
+    private int verify() {
+      int depth = 0;
+      int max = 0;
+      int a = 0;
+      int stored = 0;
+      for (byte op : code) {
+        // Slots are filled in order, each before it is loaded.
+        int limit = op == CONST ? constants.length : op == VAR ? variables.length : op == STORE ? stored + 1 : op == LOAD ? stored : -1;
+        if (limit >= 0) {
+          if (a == args.length || args[a] < 0 || args[a] >= limit || (op == STORE && args[a] != stored))
+            throw new IllegalArgumentException("Corrupt postfix code: argument out of range.");
+          a++;
+        }
+        int operands = op < 0 || op >= OPERANDS.length ? -1 : OPERANDS[op];
+        if (operands < 0 || depth < operands)
+          throw new IllegalArgumentException("Corrupt postfix code: opcode " + op + " at stack depth " + depth + ".");
+        if (op == STORE)
+          stored++;
+        else
+          depth += 1 - operands;
+        max = Math.max(max, depth);
+      }
+      if (depth != 1 || a != args.length || stored != slots)
+        throw new IllegalArgumentException("Corrupt postfix code: leaves " + depth + " values.");
+      return max;
+    }
+
+    double eval(double... bindings) {
+      if (bindings.length < variables.length)
+        throw new IllegalArgumentException("Expected " + variables.length + " values for " + Arrays.toString(variables) + " got " + bindings.length + " instead.");
+      double[][] holder = STACK.get();
+      if (holder[0].length < maxStack + slots)
+        holder[0] = new double[Math.max(maxStack + slots, holder[0].length * 2)];
+      return eval(bindings, holder[0]);
+    }
+
+    /**
+     * The value, using stack for intermediate results; it needs room for maxStack + slots entries.
+     */
+    private double eval(double[] bindings, double[] stack) {
+      byte[] code = this.code;
+      int[] args = this.args;
+      int sp = -1;
+      int a = 0;
+      for (int pc = 0; pc < code.length; pc++) {
+        switch (code[pc]) {
+          case CONST:
+            stack[++sp] = constants[args[a++]];
+            break;
+          case VAR:
+            stack[++sp] = bindings[args[a++]];
+            break;
+          case STORE:
+            stack[maxStack + args[a++]] = stack[sp];
+            break;
+          case LOAD:
+            stack[++sp] = stack[maxStack + args[a++]];
+            break;
+          case ADD:
+            sp--;
+            stack[sp] += stack[sp + 1];
+            break;
+          case SUB:
+            sp--;
+            stack[sp] -= stack[sp + 1];
+            break;
+          case MUL:
+            sp--;
+            stack[sp] *= stack[sp + 1];
+            break;
+          case DIV:
+            sp--;
+            stack[sp] /= stack[sp + 1];
+            break;
+          case REM:
+            sp--;
+            stack[sp] %= stack[sp + 1];
+            break;
+          case POW:
+            sp--;
+            stack[sp] = Math.pow(stack[sp], stack[sp + 1]);
+            break;
+          case NEG:
+            stack[sp] = -stack[sp];
+            break;
+          case LN:
+            stack[sp] = Math.log(stack[sp]);
+            break;
+          case LOG:
+            stack[sp] = Math.log10(stack[sp]);
+            break;
+          case ABS:
+            stack[sp] = Math.abs(stack[sp]);
+            break;
+          case SQRT:
+            stack[sp] = Math.sqrt(stack[sp]);
+            break;
+          case SIN:
+            stack[sp] = Math.sin(stack[sp]);
+            break;
+          case COS:
+            stack[sp] = Math.cos(stack[sp]);
+            break;
+          case MIN:
+            sp--;
+            stack[sp] = Math.min(stack[sp], stack[sp + 1]);
+            break;
+          case MAX:
+            sp--;
+            stack[sp] = Math.max(stack[sp], stack[sp + 1]);
+            break;
+          case IF:
+            sp -= 2;
+            stack[sp] = Operator.select(stack[sp], stack[sp + 1], stack[sp + 2]);
+            break;
+          default:
+            throw new IllegalStateException("Bad opcode " + code[pc]);
+        }
+      }
+      return stack[0];
+    }
+
+    /**
+     * Appends this in the form map() and read() take back: a magic number, the variable names, then the code,
+     * arguments and constants, each preceded by its length.
+     */
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(MAGIC);
+      out.writeInt(variables.length);
+      for (String name : variables) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.writeInt(slots);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeInt(args.length);
+      for (int arg : args)
+        out.writeInt(arg);
+      out.writeInt(constants.length);
+      for (double constant : constants)
+        out.writeDouble(constant);
+    }
+
+    /**
+     * The next Postfix in bytes, which is left just past it.
+     */
+    static Postfix read(ByteBuffer bytes) {
+      try {
+        if (bytes.getInt() != MAGIC)
+          throw new IllegalArgumentException("Not postfix code at " + (bytes.position() - 4) + ".");
+        String[] variables = new String[length(bytes, 4)];
+        for (int i = 0; i < variables.length; i++) {
+          byte[] name = new byte[length(bytes, 1)];
+          bytes.get(name);
+          variables[i] = new String(name, StandardCharsets.UTF_8);
+        }
+        int slots = bytes.getInt();
+        byte[] code = new byte[length(bytes, 1)];
+        bytes.get(code);
+        int[] args = new int[length(bytes, 4)];
+        bytes.asIntBuffer().get(args);
+        bytes.position(bytes.position() + 4 * args.length);
+        double[] constants = new double[length(bytes, 8)];
+        bytes.asDoubleBuffer().get(constants);
+        bytes.position(bytes.position() + 8 * constants.length);
+        return new Postfix(variables, code, args, constants, slots);
+      } catch (BufferUnderflowException e) {
+        throw new IllegalArgumentException("Truncated postfix code.", e);
+      }
+    }
+    // A length read from bytes, checked against what is left so a corrupt one can't ask for a huge array.
+    private static int length(ByteBuffer bytes, int size) {
+      int ret = bytes.getInt();
+      if (ret < 0 || ret > bytes.remaining() / size)
+        throw new IllegalArgumentException("Corrupt postfix code: length " + ret + " at " + (bytes.position() - 4) + ".");
+      return ret;
+    }
+
+    /**
+     * Every Postfix in a file of them written back to back, read through a memory mapping.
+     */
+    static List<Postfix> map(Path file) throws IOException {
+      List<Postfix> ret = new ArrayList<>();
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        while (bytes.hasRemaining())
+          ret.add(read(bytes));
+      }
+      return ret;
+    }
+
+    public String toString() {
+      return code.length + " ops, " + constants.length + " constants, " + slots + " slots";
+    }
+
+    public static void test() {
+      String[] exprs = {"1+2*3", "-2^2", "2^3^2", "ln2^2", "2*-3^2", "--3", "2+-+-3", "1-2-3", "8/4/2", "5%3", "7mod3*2",
+          "log1000", "ln(e)", "2*pi", "(1+2)*3", "((2))", "1/0", "0/0", "-0", "+5", "x", "3*x^2+y", "ln(x+1)*ln(x+1)-y/ln(x+1)",
+          "(x-y)*(x-y)+(x-y)", "$rate*x mod 3", "x ? abs y : sqrt(sin x^2 + cos y)", "max(x, min(y, 2))", Bench.random(1_000, 9)};
+      double[][] bindings = {{0, 0}, {1.5, -2}, {-0.0, Double.NaN}, {1e300, 3}};
+      List<Postfix> programs = new ArrayList<>();
+      List<Formula> formulas = new ArrayList<>();
+      for (String s : exprs) {
+        Formula f = Main.compile(s);
+        Postfix p = new Postfix(f.expr, f.variables);
+        assert Arrays.asList(p.variables).equals(f.variables()) : s;
+        for (double[] b : bindings)
+          assert Double.compare(p.eval(b), f.eval(b)) == 0 : s + " at " + Arrays.toString(b);
+        // Unoptimized, straight from the parser.
+        Tokens tokens = Tokens.lex(s);
+        Evaluable tree = new Expression().parse(tokens);
+        assert Double.compare(new Postfix(tree, tokens.variables).eval(tokens.variables.values), tree.evaluate()) == 0 : s;
+        programs.add(p);
+        formulas.add(f);
+      }
+      Formula shared = Main.compile("ln(x+1)*ln(x+1)");
+      assert new Postfix(shared.expr, shared.variables).toString().equals("7 ops, 1 constants, 1 slots");
+      // A STORE right after the last arg that fits, for every position of the shared sin(x).
+      for (int n = 0; n < 40; n++) {
+        Formula f = Main.compile("x+".repeat(n) + "(-sin(x) + sin(x) + -sin(x))");
+        assert Double.compare(new Postfix(f.expr, f.variables).eval(0.5), f.eval(0.5)) == 0 : n;
+      }
+
+      try {
+        Path file = Files.createTempFile("formulas", ".pfx");
+        try {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          DataOutputStream out = new DataOutputStream(bytes);
+          for (Postfix p : programs)
+            p.write(out);
+          Files.write(file, bytes.toByteArray());
+          List<Postfix> mapped = map(file);
+          assert mapped.size() == programs.size();
+          for (int i = 0; i < mapped.size(); i++) {
+            assert Arrays.asList(mapped.get(i).variables).equals(formulas.get(i).variables());
+            for (double[] b : bindings)
+              assert Double.compare(mapped.get(i).eval(b), formulas.get(i).eval(b)) == 0 : exprs[i];
+          }
+
+          // Damage anywhere is reported, never evaluated.
+          byte[] good = bytes.toByteArray();
+          Random random = new Random(16);
+          for (int i = 0; i < 2_000; i++) {
+            byte[] bad = good.clone();
+            bad[random.nextInt(bad.length)] ^= (byte) (1 << random.nextInt(8));
+            ByteBuffer buffer = ByteBuffer.wrap(bad, 0, random.nextInt(2) == 0 ? bad.length : random.nextInt(bad.length));
+            try {
+              while (buffer.hasRemaining())
+                read(buffer).eval(1, 2, 3);
+            } catch (IllegalArgumentException e) {
+              // expected for most
+            }
+          }
+        } finally {
+          Files.delete(file);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Evaluates a tree column-at-a-time: every Operation runs as one loop over a block of rows, so the per-row
+   * cost is a few array operations the JIT can vectorize instead of a walk over the tree.
+   */
+  static class Batch {
+    static final int BLOCK = 1024;
+    // Operations nested deeper than this go row at a time instead of recursing in into().
+    private static final int MAX_HEIGHT = 512;
+
+    private final double[][] columns;
+    private final double[][] scratch;
+    private int from;
+    private int len;
+
+    private Batch(double[][] columns, int depth) {
+      this.columns = columns;
+      this.scratch = new double[depth][BLOCK];
+    }
+
+    /**
+     * Writes the value of expr for each row into out. columns[v][row] is the value of variable v in that row.
+     */
+    static void evaluate(Evaluable expr, Variables variables, double[][] columns, double[] out) {
+      if (columns.length < variables.names.size())
+        throw new IllegalArgumentException("Expected " + variables.names.size() + " columns for " + variables.names + " got " + columns.length + " instead.");
+      for (double[] column : columns)
+        if (column.length < out.length)
+          throw new IllegalArgumentException("Column has " + column.length + " rows, expected " + out.length + ".");
+      expr = unwrap(expr);
+      if (!supported(expr)) {
+        // Operators without a loop here, and trees too tall for the recursion below, go row at a time.
+        Compiled compiled = Compiler.compile(expr, variables);
+        double[] row = new double[columns.length];
+        for (int r = 0; r < out.length; r++) {
+          for (int v = 0; v < columns.length; v++)
+            row[v] = columns[v][r];
+          out[r] = compiled.eval(row);
+        }
+        return;
+      }
+      Batch batch = new Batch(columns, Compiler.depth(expr));
+      double[] block = new double[BLOCK];
+      for (batch.from = 0; batch.from < out.length; batch.from += BLOCK) {
+        batch.len = Math.min(BLOCK, out.length - batch.from);
+        batch.into(expr, block, 0);
+        System.arraycopy(block, 0, out, batch.from, batch.len);
+      }
+    }
+
+    private static Evaluable unwrap(Evaluable e) {
+      while (true) {
+        if (e instanceof Grouping)
+          e = ((Grouping) e).inner;
+        else if (e instanceof Expression)
+          e = ((Expression) e).elements.get(0);
+        else
+          return e;
+      }
+    }
+
+    private static boolean supported(Evaluable root) {
+      PostOrder walk = new PostOrder(root);
+      int[] heights = new int[16];
+      int size = 0;
+      while (walk.next()) {
+        Evaluable e = walk.node;
+        if (e instanceof Operation) {
+          Operator op = ((Operation) e).op;
+          if (op != Operator.ADD && op != Operator.SUB && op != Operator.MUL && op != Operator.DIV && op != Operator.REM
+              && op != Operator.MOD && op != Operator.POW && op != Operator.NEG && op != Operator.POS && op != Operator.LN
+              && op != Operator.LOG)
+            return false;
+          int height = 0;
+          size -= walk.children;
+          for (int k = 0; k < walk.children; k++)
+            height = Math.max(height, heights[size + k]);
+          if (height >= MAX_HEIGHT)
+            return false;
+          heights[size++] = height + 1;
+        } else if (walk.children == 0) {
+          if (!(e instanceof Numeral || e instanceof Constant || e instanceof Literal || e instanceof Variable))
+            return false;
+          if (size == heights.length)
+            heights = Arrays.copyOf(heights, size * 2);
+          heights[size++] = 1;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Fills dest[0, len) with the value of e for the current block. Levels at or above {@code level} of the
+     * scratch buffers are free to use.
+     */
+    private void into(Evaluable e, double[] dest, int level) {
+      if (e instanceof Variable) {
+        System.arraycopy(columns[((Variable) e).index], from, dest, 0, len);
+        return;
+      }
+      if (!(e instanceof Operation)) {
+        Arrays.fill(dest, 0, len, e.evalAsDouble());
+        return;
+      }
+      Operation o = (Operation) e;
+      Operator op = o.op;
+      into(unwrap(o.operands[0]), dest, level);
+      if (o.operands.length == 1) {
+        if (op == Operator.NEG)
+          for (int i = 0; i < len; i++)
+            dest[i] = -dest[i];
+        else if (op == Operator.LN)
+          for (int i = 0; i < len; i++)
+            dest[i] = Math.log(dest[i]);
+        else if (op == Operator.LOG)
+          for (int i = 0; i < len; i++)
+            dest[i] = Math.log10(dest[i]);
+        return;
+      }
+
+      // Right operand: read constants and variables in place, evaluate anything else into scratch.
+      Evaluable right = unwrap(o.operands[1]);
+      double[] src;
+      int off = 0;
+      if (right instanceof Variable) {
+        src = columns[((Variable) right).index];
+        off = from;
+      } else if (!(right instanceof Operation)) {
+        double c = right.evalAsDouble();
+        if (op == Operator.ADD)
+          for (int i = 0; i < len; i++)
+            dest[i] += c;
+        else if (op == Operator.SUB)
+          for (int i = 0; i < len; i++)
+            dest[i] -= c;
+        else if (op == Operator.MUL)
+          for (int i = 0; i < len; i++)
+            dest[i] *= c;
+        else if (op == Operator.DIV)
+          for (int i = 0; i < len; i++)
+            dest[i] /= c;
+        else if (op == Operator.REM || op == Operator.MOD)
+          for (int i = 0; i < len; i++)
+            dest[i] %= c;
+        else if (op == Operator.POW)
+          for (int i = 0; i < len; i++)
+            dest[i] = Math.pow(dest[i], c);
+        return;
+      } else {
+        src = scratch[level];
+        into(right, src, level + 1);
+      }
+      if (op == Operator.ADD)
+        for (int i = 0; i < len; i++)
+          dest[i] += src[off + i];
+      else if (op == Operator.SUB)
+        for (int i = 0; i < len; i++)
+          dest[i] -= src[off + i];
+      else if (op == Operator.MUL)
+        for (int i = 0; i < len; i++)
+          dest[i] *= src[off + i];
+      else if (op == Operator.DIV)
+        for (int i = 0; i < len; i++)
+          dest[i] /= src[off + i];
+      else if (op == Operator.REM || op == Operator.MOD)
+        for (int i = 0; i < len; i++)
+          dest[i] %= src[off + i];
+      else if (op == Operator.POW)
+        for (int i = 0; i < len; i++)
+          dest[i] = Math.pow(dest[i], src[off + i]);
+    }
+
+    public static void test() {
+      String[] exprs = {"3*x^2+y", "x-y-x*y", "-x", "ln(x)+log(y)", "(x+1)/(y-2)%3", "x mod 2", "--x^(-y)+pi", "2^x^y",
+          "x", "7", "e*(x+y*(x-y*(x+e)))"};
+      Random random = new Random(5);
+      int rows = BLOCK * 3 + 17;
+      double[][] columns = new double[2][rows];
+      for (int r = 0; r < rows; r++) {
+        columns[0][r] = random.nextDouble() * 10 - 2;
+        columns[1][r] = random.nextInt(7) - 3;
+      }
+      double[] out = new double[rows];
+      for (String s : exprs) {
+        Formula f = Main.compile(s);
+        f.evaluateBatch(columns, out);
+        for (int r = 0; r < rows; r++) {
+          for (int v = 0; v < f.variables.values.length; v++)
+            f.variables.values[v] = columns[v][r];
+          assert Double.compare(out[r], f.expr.evaluate()) == 0 : s + " row " + r;
+        }
+      }
+    }
+  }
+
+  /**
+   * What the JMH benchmarks in jmh/ measure, built here where they can name this file's classes: benchmarks
+   * have to be in a package, and a package can't import from this unnamed one. Each operation is a
+   * DoubleSupplier whose result the benchmark returns to JMH. Build and run them with
+   * "mvn -Pjmh package && java -jar target/benchmarks.jar -prof gc".
+   */
+  static class Bench {
+    /**
+     * Inputs by name: growing size, deep nesting, long unary runs and heavily repeated subexpressions.
+     */
+    static Map<String, String> cases() {
+      Map<String, String> cases = new LinkedHashMap<>();
+      cases.put("tokens-10", random(10, 1));
+      cases.put("tokens-1k", random(1_000, 2));
+      cases.put("tokens-100k", random(100_000, 3));
+      cases.put("parens-1k", "(".repeat(1_000) + "1" + ")".repeat(1_000));
+      cases.put("unary-10k", "-".repeat(10_000) + "1");
+      // A generated formula repeating the same few subexpressions, as hash-consing into a Dag is meant for.
+      cases.put("money-1k", money(1_000, 6));
+      cases.put("repeated-1k", String.join("+", Collections.nCopies(50, "(" + random(10, 4) + ")*ln(2+" + random(6, 5) + ")")));
+      return cases;
+    }
+
+    /**
+     * Each stage on source, from lexing it to evaluating it every way there is.
+     */
+    static Map<String, DoubleSupplier> stages(String source) {
+      Tokens tokens = Tokens.lex(source);
+      Expression expr = new Expression().parse(tokens);
+      Compiled compiled = Compiler.compile(expr);
+      Dag dag = new Dag(expr);
+      Compiled shared = Compiler.compile(dag.root);
+      Postfix postfix = new Postfix(dag.root, tokens.variables);
+      Backend<BigDecimal> decimal = Backend.decimal(MathContext.DECIMAL64);
+      // One keystroke in the middle, alternately typing a digit and deleting it again.
+      LiveExpression live = new LiveExpression(source);
+      int digit = source.length() / 2;
+      while (!Character.isDigit(source.charAt(digit)))
+        digit = (digit + 1) % source.length();
+      int at = digit;
+      boolean[] typed = {false};
+
+      Map<String, DoubleSupplier> ret = new LinkedHashMap<>();
+      ret.put("lex", () -> Tokens.lex(source).size);
+      ret.put("parse", () -> {
+        tokens.i = 0;
+        return new Expression().parse(tokens).elements.size();
+      });
+      ret.put("arena", () -> Arena.local().parse(source).size());
+      ret.put("evaluate", expr::evalAsDouble);
+      ret.put("compiled", () -> compiled.eval());
+      ret.put("dag", () -> dag.evaluate(Compiled.NO_BINDINGS));
+      ret.put("dag-comp", () -> shared.eval());
+      ret.put("postfix", () -> postfix.eval(Compiled.NO_BINDINGS));
+      ret.put("double", () -> Backend.DOUBLE.evaluate(expr, List.of()));
+      ret.put("decimal", () -> decimal.evaluate(expr, List.of()).signum());
+      ret.put("rational", () -> Backend.RATIONAL.evaluate(expr, List.of()).numerator.signum());
+      ret.put("toString", () -> expr.toString().length());
+      ret.put("update", () -> (typed[0] = !typed[0]) ? live.update(at, 0, "1") : live.update(at, 1, ""));
+      return ret;
+    }
+
+    /**
+     * Sequential against parallel evaluation of a balanced tree of about {@code nodes} nodes, to find where
+     * splitting starts to pay.
+     */
+    static Map<String, DoubleSupplier> parallel(int nodes) {
+      Evaluable expr = new Expression().parse(Tokens.lex(ParallelEvaluator.balanced(nodes, nodes)));
+      ParallelEvaluator parallel = new ParallelEvaluator(expr, ParallelEvaluator.THRESHOLD);
+      Map<String, DoubleSupplier> ret = new LinkedHashMap<>();
+      ret.put("sequential", expr::evalAsDouble);
+      ret.put("parallel", () -> parallel.evaluate(ForkJoinPool.commonPool()));
+      return ret;
+    }
+
+    /**
+     * A balanced sum of {@code n} variables (a power of two), one of them changed per call: evaluated as a
+     * tree, compiled, and incrementally.
+     */
+    static Map<String, DoubleSupplier> incremental(int n) {
+      StringBuilder source = new StringBuilder();
+      Incremental.sum(source, 0, n);
+      Formula f = Main.compile(source.toString());
+      Incremental incremental = f.incremental();
+      double[] bindings = new double[n];
+      int[] tick = {0};
+      Map<String, DoubleSupplier> ret = new LinkedHashMap<>();
+      ret.put("tree", () -> {
+        f.variables.values[tick[0]++ & (n - 1)] = tick[0];
+        return f.expr.evalAsDouble();
+      });
+      ret.put("compiled", () -> {
+        bindings[tick[0]++ & (n - 1)] = tick[0];
+        return f.eval(bindings);
+      });
+      ret.put("increment", () -> {
+        incremental.set(tick[0]++ & (n - 1), tick[0]);
+        return incremental.value();
+      });
+      return ret;
+    }
+
+    /**
+     * A well-formed expression of about {@code tokens} tokens: numerals, constants, the binary operators and
+     * the occasional unary operator or parenthesized group.
+     */
+    static String random(int tokens, long seed) {
+      Random random = new Random(seed);
+      String[] binary = {"+", "-", "*", "/", "^", "%", "mod"};
+      StringBuilder ret = new StringBuilder();
+      int open = 0;
+      String op = "";
+      for (int i = 0; i < tokens; i += 2) {
+        int kind = random.nextInt(10);
+        if (kind == 0 && i + 4 < tokens) {
+          ret.append(random.nextBoolean() ? "ln(" : "(");
+          open++;
+        } else if (kind == 1 && !op.equals("^")) {
+          // Unary minus binds looser than ^, so "2^-3" doesn't parse.
+          ret.append('-');
+        }
+        ret.append(random.nextInt(4) == 0 ? random.nextBoolean() ? "pi" : "e" : random.nextInt(100) + "." + random.nextInt(100));
+        if (open > 0 && random.nextInt(4) == 0) {
+          ret.append(')');
+          open--;
+        }
+        if (i + 2 < tokens)
+          ret.append(op = binary[random.nextInt(binary.length)]);
+      }
+      ret.append(")".repeat(open));
+      return ret.toString();
+    }
+
+    /**
+     * Sums and products of prices with two decimals, about {@code tokens} tokens: what an exact backend is for.
+     */
+    static String money(int tokens, long seed) {
+      Random random = new Random(seed);
+      StringBuilder ret = new StringBuilder();
+      for (int i = 0; i < tokens; i += 4) {
+        if (i > 0)
+          ret.append(random.nextInt(3) == 0 ? "-" : "+");
+        ret.append(random.nextInt(1000)).append('.').append(random.nextInt(90) + 10);
+        ret.append(random.nextInt(4) == 0 ? "/" : "*").append(random.nextInt(9) + 1);
+      }
+      return ret.toString();
+    }
+
+    /**
+     * Bytes this thread allocates while running op.
+     */
+    static long allocatedBytes(Runnable op) {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+      long thread = Thread.currentThread().getId();
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      op.run();
+      return threads.getThreadAllocatedBytes(thread) - bytes;
+    }
+  }
+
+  /**
+   * Generated inputs, checked against a model and every engine against the others. Run with
+   * "java -ea Main --fuzz [seconds] [threads]"; --test runs a short fixed-seed pass.
+   * - Well-formed cases start as a tree whose value the generator computes itself. The tree is printed with
+   *   only the parentheses its own precedence table calls for, so a misread precedence shows up as a wrong
+   *   value.
+   * - Malformed cases are runs of fragments, or a well-formed case with a character changed. They have to
+   *   fail with a ParseFailedException, and with the same message from every entry point.
+   * A failure is shrunk to a smallest case that still breaks the same property.
+   */
+  static class Fuzz {
+    static final String[] NAMES = {"x", "y", "$z"};
+    private static final double[] VALUES = {0, -0.0, 1, -2.5, 0.5, 3, 1e300, Double.NaN, Double.POSITIVE_INFINITY,
+        Double.NEGATIVE_INFINITY};
+    private static final String[] PREFIX = {"-", "+", "ln", "log", "abs", "sqrt", "sin", "cos"};
+    private static final String[] INFIX = {"+", "-", "*", "/", "%", "^", "mod"};
+    // Every kind of token, and the pieces that are easy to get wrong: "e" as a constant and an exponent marker,
+    // numerals missing a part, signs.
+    private static final String[] PIECES = {"1", "2.5", ".5", "5.", "1e3", "2E-2", "1e", "1.e", "e+", ".", "e", "E", "pi",
+        "PI", "x", "y", "$z", "$", "(", ")", ",", "+", "-", "*", "/", "%", "^", "mod", "ln", "log", "abs", "sqrt", "min",
+        "max", "?", ":", " "};
+    private static final String CHARS = "0123456789.eE+-*/%^()$,?: xpi";
+
+    /**
+     * A generated expression: a leaf (numeral, constant or variable), an operator over kids, a call, a ternary
+     * ("?" over condition, then, otherwise), or a group ("(" over one kid).
+     */
+    private static final class Node {
+      final String token;
+      final Node[] kids;
+
+      Node(String token, Node... kids) {
+        this.token = token;
+        this.kids = kids;
+      }
+    }
+
+    /**
+     * What a run found: the cases checked, and per broken property one shrunk example.
+     */
+    static final class Report {
+      final LongAdder cases = new LongAdder();
+      final Map<String, String> failures = new ConcurrentHashMap<>();
+      long nanos;
+
+      public String toString() {
+        long n = cases.sum();
+        StringBuilder ret = new StringBuilder(String.format("%,d cases in %.1f s (%,.0f per minute), %d failing properties",
+            n, nanos / 1e9, n * 60e9 / Math.max(nanos, 1), failures.size()));
+        failures.forEach((property, example) -> ret.append("\n  ").append(property).append(": ").append(example));
+        return ret.toString();
+      }
+    }
+
+    private final Random random;
+
+    Fuzz(long seed) {
+      random = new Random(seed);
+    }
+
+    /**
+     * Runs cases on each of {@code threads} threads until {@code cases} each are done or {@code seconds} have
+     * passed. Every eighth case also goes through the engines that compile: bytecode, Batch, the formula path
+     * and ParallelEvaluator.
+     */
+    static Report run(long seed, long cases, int threads, double seconds) {
+      Report report = new Report();
+      long start = System.nanoTime();
+      long deadline = start + (long) (seconds * 1e9);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+          Fuzz fuzz = new Fuzz(seed * 1_000_003 + t);
+          done.add(executor.submit(() -> {
+            for (long i = 0; i < cases && ((i & 63) != 0 || System.nanoTime() < deadline); i++) {
+              fuzz.one(report, (i & 7) == 0);
+              report.cases.increment();
+            }
+          }));
+        }
+        for (Future<?> f : done)
+          f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      } finally {
+        executor.shutdown();
+      }
+      report.nanos = System.nanoTime() - start;
+      return report;
+    }
+
+    private void one(Report report, boolean heavy) {
+      double[] vars = new double[NAMES.length];
+      for (int k = 0; k < vars.length; k++)
+        vars[k] = VALUES[random.nextInt(VALUES.length)];
+      if (random.nextBoolean()) {
+        Node tree = node(1 + random.nextInt(7));
+        String source = render(tree, random);
+        String failure = check(source, vars, value(tree, vars), heavy);
+        if (failure == null || report.failures.containsKey(property(failure)))
+          return;
+        String property = property(failure);
+        Node small = shrink(tree, (n) -> fails(check(render(n, new Random(0)), vars, value(n, vars), true), property));
+        String text = render(small, new Random(0));
+        if (!fails(check(text, vars, value(small, vars), true), property)) {
+          // Only fails with the spacing it had.
+          small = tree;
+          text = source;
+        }
+        String shorter = shrink(text, (s) -> fails(check(s, vars, null, true), property));
+        record(report, shorter, vars, shorter.equals(text) ? value(small, vars) : null);
+        return;
+      }
+      String source = random.nextBoolean() ? mutate(render(node(1 + random.nextInt(5)), random)) : soup();
+      String failure = check(source, vars, null, heavy);
+      if (failure != null && !report.failures.containsKey(property(failure)))
+        record(report, shrink(source, (s) -> fails(check(s, vars, null, true), property(failure))), vars, null);
+    }
+
+    private static void record(Report report, String source, double[] vars, Double expected) {
+      String failure = check(source, vars, expected, true);
+      report.failures.putIfAbsent(property(failure), "\"" + source + "\" with " + String.join(", ", NAMES) + " = "
+          + Arrays.toString(vars) + (expected == null ? "" : ", expected " + expected) + ": " + failure);
+    }
+
+    private static boolean fails(String failure, String property) {
+      return failure != null && property(failure).equals(property);
+    }
+    private static String property(String failure) {
+      return failure.substring(0, failure.indexOf(':'));
+    }
+
+    Node node(int depth) {
+      if (depth <= 0 || random.nextInt(4) == 0) {
+        switch (random.nextInt(6)) {
+          case 0:
+            return new Node(random.nextBoolean() ? "e" : "pi");
+          case 1:
+            return new Node(NAMES[random.nextInt(NAMES.length)]);
+          default:
+            return new Node(numeral());
+        }
+      }
+      switch (random.nextInt(10)) {
+        case 0:
+        case 1:
+          return new Node(PREFIX[random.nextInt(PREFIX.length)], node(depth - 1));
+        case 2:
+          return new Node(random.nextBoolean() ? "min" : "max", node(depth - 1), node(depth - 1));
+        case 3:
+          return new Node("?", node(depth - 1), node(depth - 1), node(depth - 1));
+        case 4:
+          return new Node("(", node(depth - 1));
+        default:
+          return new Node(INFIX[random.nextInt(INFIX.length)], node(depth - 1), node(depth - 1));
+      }
+    }
+
+    private String numeral() {
+      switch (random.nextInt(8)) {
+        case 0:
+          return random.nextInt(10) + "." + random.nextInt(1000);
+        case 1:
+          return "." + random.nextInt(100);
+        case 2:
+          return random.nextInt(100) + ".";
+        case 3:
+          return (1 + random.nextInt(9)) + (random.nextBoolean() ? "e" : "E") + (random.nextBoolean() ? "-" : random.nextBoolean() ? "+" : "") + random.nextInt(330);
+        case 4:
+          // More digits than a long holds, or at the edge of the subnormals.
+          return random.nextBoolean() ? Long.toString(random.nextLong() & Long.MAX_VALUE) + random.nextInt(1000) : "2.4703282292062328e-324";
+        default:
+          return Integer.toString(random.nextInt(random.nextBoolean() ? 10 : 100_000));
+      }
+    }
+
+    private String soup() {
+      StringBuilder ret = new StringBuilder();
+      for (int n = 1 + random.nextInt(12); n > 0; n--)
+        ret.append(PIECES[random.nextInt(PIECES.length)]);
+      return ret.toString();
+    }
+
+    private String mutate(String s) {
+      int at = random.nextInt(s.length() + 1);
+      int deleted = at < s.length() && random.nextBoolean() ? 1 : 0;
+      String inserted = deleted == 1 && random.nextBoolean() ? "" : String.valueOf(CHARS.charAt(random.nextInt(CHARS.length())));
+      return s.substring(0, at) + inserted + s.substring(at + deleted);
+    }
+
+    // The model's precedence, higher binding tighter, kept apart from Operator so the two can be compared.
+    private static int level(Node n) {
+      switch (n.token) {
+        case "?":
+          return 1;
+        case "mod":
+          return 2;
+        case "+":
+        case "-":
+          return n.kids.length == 2 ? 3 : 5;
+        case "*":
+        case "/":
+        case "%":
+          return 4;
+        case "^":
+          return 6;
+        case "ln":
+        case "log":
+        case "abs":
+        case "sqrt":
+        case "sin":
+        case "cos":
+          return 7;
+        default:
+          return 9; // leaves, calls and groups
+      }
+    }
+    private static boolean isPrefix(Node n) {
+      return level(n) == 5 || level(n) == 7;
+    }
+    private static boolean rightToLeft(Node n) {
+      return isPrefix(n) || n.token.equals("^") || n.token.equals("?");
+    }
+
+    /**
+     * Whether kid k of parent has to be in parentheses to be read back as kid k.
+     */
+    private static boolean needsParens(Node parent, int k, Node kid) {
+      int p = level(parent);
+      int c = level(kid);
+      if (c == 9 || p == 9 || parent.token.equals("?") && k == 1)
+        return false;
+      if (isPrefix(parent)) // the operand takes in whatever binds tighter than the operator
+        return !(c > p || c == p && rightToLeft(kid));
+      if (k == 0) // a prefix operator takes in the parent if the parent binds tighter
+        return isPrefix(kid) ? p > c || p == c && rightToLeft(parent) : !(c > p || c == p && !rightToLeft(parent));
+      return isPrefix(kid) ? c < p : !(c > p || c == p && rightToLeft(parent));
+    }
+
+    /**
+     * Source text for tree, with a space wherever two tokens would otherwise run together, and elsewhere at
+     * random.
+     */
+    static String render(Node tree, Random random) {
+      StringBuilder out = new StringBuilder();
+      render(tree, out, random);
+      return out.toString();
+    }
+    private static void render(Node n, StringBuilder out, Random random) {
+      switch (n.kids.length == 0 ? "" : level(n) == 9 ? n.token : isPrefix(n) ? "prefix" : n.token.equals("?") ? "?" : "infix") {
+        case "":
+          token(n.token, out, random);
+          break;
+        case "(":
+          token("(", out, random);
+          render(n.kids[0], out, random);
+          token(")", out, random);
+          break;
+        case "prefix":
+          token(n.token, out, random);
+          operand(n, 0, out, random);
+          break;
+        case "?":
+          operand(n, 0, out, random);
+          token("?", out, random);
+          operand(n, 1, out, random);
+          token(":", out, random);
+          operand(n, 2, out, random);
+          break;
+        case "infix":
+          operand(n, 0, out, random);
+          token(n.token, out, random);
+          operand(n, 1, out, random);
+          break;
+        default: // a call
+          token(n.token, out, random);
+          token("(", out, random);
+          for (int k = 0; k < n.kids.length; k++) {
+            if (k > 0)
+              token(",", out, random);
+            render(n.kids[k], out, random);
+          }
+          token(")", out, random);
+      }
+    }
+    private static void operand(Node parent, int k, StringBuilder out, Random random) {
+      boolean parens = needsParens(parent, k, parent.kids[k]);
+      if (parens)
+        token("(", out, random);
+      render(parent.kids[k], out, random);
+      if (parens)
+        token(")", out, random);
+    }
+    private static void token(String token, StringBuilder out, Random random) {
+      if (out.length() > 0 && (isWord(out.charAt(out.length() - 1)) && isWord(token.charAt(0)) || random.nextInt(3) == 0))
+        out.append(' ');
+      out.append(token);
+    }
+    private static boolean isWord(char c) {
+      return Character.isLetterOrDigit(c) || c == '.' || c == '$' || c == '_';
+    }
+
+    /**
+     * The value of tree by the model's own arithmetic, vars holding the values of NAMES.
+     */
+    static double value(Node n, double[] vars) {
+      if (n.kids.length == 0) {
+        switch (n.token) {
+          case "e":
+            return Math.E;
+          case "pi":
+            return Math.PI;
+          default:
+            int index = Arrays.asList(NAMES).indexOf(n.token);
+            return index >= 0 ? vars[index] : Double.parseDouble(n.token);
+        }
+      }
+      double a = value(n.kids[0], vars);
+      if (n.kids.length == 1) {
+        switch (n.token) {
+          case "-":
+            return -a;
+          case "ln":
+            return Math.log(a);
+          case "log":
+            return Math.log10(a);
+          case "abs":
+            return Math.abs(a);
+          case "sqrt":
+            return Math.sqrt(a);
+          case "sin":
+            return Math.sin(a);
+          case "cos":
+            return Math.cos(a);
+          default: // "+" and "("
+            return a;
+        }
+      }
+      double b = value(n.kids[1], vars);
+      switch (n.token) {
+        case "?":
+          return a != 0 ? b : value(n.kids[2], vars);
+        case "+":
+          return a + b;
+        case "-":
+          return a - b;
+        case "*":
+          return a * b;
+        case "/":
+          return a / b;
+        case "^":
+          return Math.pow(a, b);
+        case "min":
+          return Math.min(a, b);
+        case "max":
+          return Math.max(a, b);
+        default: // "%" and "mod"
+          return a % b;
+      }
+    }
+
+    private interface Attempt {
+      double get();
+    }
+
+    /**
+     * The value, or for a ParseFailedException its message. Anything else thrown is a failure of its own.
+     */
+    private static Object attempt(Attempt a) {
+      try {
+        return a.get();
+      } catch (ParseFailedException e) {
+        return e.getMessage();
+      }
+    }
+
+    private static boolean same(Object a, Object b) {
+      return a instanceof Double && b instanceof Double ? Double.compare((Double) a, (Double) b) == 0 : a.equals(b);
+    }
+
+    /**
+     * The first property source breaks, as "property: detail", or null if it passes. expected is the model's
+     * value, or null when there is no model. Heavy adds the engines that compile.
+     */
+    static String check(String source, double[] vars, Double expected, boolean heavy) {
+      String property = "parse";
+      try {
+        Tokens tokens = Tokens.lex(source);
+        Object parsed = attempt(() -> {
+          Expression e = new Expression().parse(tokens);
+          if (e == null)
+            throw new ParseFailedException("Found no expression in \"" + source + "\".");
+          return 0;
+        });
+        property = "engine";
+        Object reference = attempt(() -> Engine.evaluate(source));
+        property = "live";
+        LiveExpression live = new LiveExpression(source);
+        for (int k = 0; k < NAMES.length; k++)
+          live.set(NAMES[k], vars[k]);
+        Object liveValue = attempt(live::evaluate);
+        property = "arena";
+        Object arena = attempt(() -> {
+          Arena a = Arena.local().parse(source);
+          return a.evaluate(bindings(a.variables(), vars));
+        });
+        property = "formula";
+        Object formula = heavy ? attempt(() -> {
+          Formula f = Main.compile(source);
+          return f.eval(bindings(f.variables.names, vars));
+        }) : null;
+
+        if (parsed instanceof String) {
+          if (expected != null)
+            return "model: the parser says " + parsed;
+          if (!same(reference, parsed))
+            return "engine: " + reference + " where the parser says " + parsed;
+          if (!same(liveValue, parsed))
+            return "live: " + liveValue + " where the parser says " + parsed;
+          if (!same(arena, parsed))
+            return "arena: " + arena + " where the parser says " + parsed;
+          if (formula != null && !same(formula, parsed))
+            return "formula: " + formula + " where the parser says " + parsed;
+          return null;
+        }
+
+        // Parsed: tokens.i is past the parse, which may have stopped early.
+        tokens.i = 0;
+        Expression tree = new Expression().parse(tokens);
+        Variables variables = tokens.variables;
+        double[] bindings = bindings(variables.names, vars);
+        variables.values = bindings.clone();
+        double value = tree.evalAsDouble();
+        property = "model";
+        if (expected != null && tokens.type() != Tokens.END)
+          return "model: parse stopped at \"" + tokens + "\"";
+        if (expected != null && Double.compare(expected, value) != 0)
+          return "model: " + value;
+        if (variables.names.isEmpty() && !same(reference, value))
+          return "engine: " + reference;
+        if (!same(liveValue, value))
+          return "live: " + liveValue;
+        if (!same(arena, value))
+          return "arena: " + arena;
+        Map<String, Double> engines = new LinkedHashMap<>();
+        property = "dag";
+        engines.put("dag", new Dag(tree).evaluate(bindings));
+        property = "backend";
+        engines.put("backend", Backend.DOUBLE.evaluate(tree, Arrays.stream(bindings).boxed().collect(Collectors.toList())));
+        property = "postfix";
+        try {
+          engines.put("postfix", new Postfix(tree, variables).eval(bindings));
+        } catch (UnsupportedOperationException e) {
+          // operators registered at run time have no opcode
+        }
+        if (heavy) {
+          property = "compiler";
+          engines.put("compiler", Compiler.compile(tree, variables).eval(bindings));
+          // compile() rejects what the tree leaves unparsed, where the other engines see only the first term.
+          if (tokens.type() == Tokens.END && tree.elements.size() == 1)
+            engines.put("formula", (Double) formula);
+          else if (!(formula instanceof String))
+            return "formula: " + formula + " where the parse stopped short of the input";
+          property = "batch";
+          double[][] columns = new double[bindings.length][];
+          for (int k = 0; k < columns.length; k++)
+            columns[k] = new double[]{bindings[k]};
+          double[] out = new double[1];
+          Batch.evaluate(tree, variables, columns, out);
+          engines.put("batch", out[0]);
+          property = "parallel";
+          engines.put("parallel", new ParallelEvaluator(tree, 2).evaluate(ForkJoinPool.commonPool()));
+        }
+        for (Map.Entry<String, Double> e : engines.entrySet())
+          if (Double.compare(e.getValue(), value) != 0)
+            return e.getKey() + ": " + e.getValue() + " where the tree gives " + value;
+
+        // Printing reads back as the same tree, parenthesized or not.
+        for (boolean explicitParens : new boolean[]{false, true}) {
+          property = explicitParens ? "print explicit" : "print";
+          String printed = tree.toString(explicitParens);
+          Tokens again = Tokens.lex(printed);
+          Expression reparsed = new Expression().parse(again);
+          if (reparsed == null)
+            return property + ": \"" + printed + "\" doesn't parse";
+          again.variables.values = bindings(again.variables.names, vars);
+          if (Double.compare(reparsed.evalAsDouble(), value) != 0)
+            return property + ": \"" + printed + "\" gives " + reparsed.evalAsDouble();
+          if (!explicitParens && !reparsed.toString().equals(printed))
+            return property + ": \"" + printed + "\" prints back as \"" + reparsed + "\"";
+        }
+        return null;
+      } catch (RuntimeException | StackOverflowError e) {
+        return property + ": threw " + e;
+      }
+    }
+
+    private static double[] bindings(List<String> names, double[] vars) {
+      // Names a mutation made up are NaN, as for any variable never set.
+      double[] ret = new double[names.size()];
+      for (int k = 0; k < ret.length; k++) {
+        int index = Arrays.asList(NAMES).indexOf(names.get(k));
+        ret[k] = index < 0 ? Double.NaN : vars[index];
+      }
+      return ret;
+    }
+
+    /**
+     * A smallest tree, by replacing nodes with one of their kids or with 1, for which fails still holds.
+     */
+    static Node shrink(Node tree, Predicate<Node> fails) {
+      boolean smaller = true;
+      while (smaller) {
+        smaller = false;
+        for (Node candidate : candidates(tree)) {
+          if (fails.test(candidate)) {
+            tree = candidate;
+            smaller = true;
+            break;
+          }
+        }
+      }
+      return tree;
+    }
+    private static List<Node> candidates(Node n) {
+      List<Node> ret = new ArrayList<>(Arrays.asList(n.kids));
+      if (!n.token.equals("1"))
+        ret.add(new Node("1"));
+      for (int k = 0; k < n.kids.length; k++)
+        for (Node kid : candidates(n.kids[k])) {
+          Node[] kids = n.kids.clone();
+          kids[k] = kid;
+          ret.add(new Node(n.token, kids));
+        }
+      return ret;
+    }
+
+    /**
+     * A shortest text, by deleting runs of characters, for which fails still holds.
+     */
+    static String shrink(String source, Predicate<String> fails) {
+      for (int run = Math.max(source.length() / 2, 1); run >= 1; run /= 2) {
+        for (int at = 0; at + run <= source.length(); ) {
+          String candidate = source.substring(0, at) + source.substring(at + run);
+          if (fails.test(candidate))
+            source = candidate;
+          else
+            at++;
+        }
+      }
+      return source;
+    }
+
+    static void main(String[] args) {
+      double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 60;
+      int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+      System.out.println(run(System.nanoTime(), Long.MAX_VALUE, threads, seconds));
+    }
+
+    public static void test() {
+      // The model agrees with hand-written cases, its parentheses included.
+      Node minus = new Node("-", new Node("2"), new Node("-", new Node("3"), new Node("4")));
+      assert render(minus, new Random(1)).replace(" ", "").equals("2-(3-4)") && value(minus, new double[3]) == 3;
+      Node power = new Node("^", new Node("-", new Node("2")), new Node("2"));
+      assert render(power, new Random(1)).replace(" ", "").equals("(-2)^2");
+      Node ternary = new Node("?", new Node("?", new Node("0"), new Node("1"), new Node("x")), new Node("2"), new Node("3"));
+      assert render(ternary, new Random(1)).replace(" ", "").equals("(0?1:x)?2:3");
+      assert check("2-(3-4)", new double[3], 3.0, true) == null;
+      assert check("2-(3-4)", new double[3], -5.0, true).startsWith("model: ");
+      assert check("1e+", new double[3], null, true) == null;
+
+      // Shrinking keeps only what the failure needs.
+      assert shrink("1 + ln(2 * x^y) - max(3, x * 4)", (s) -> s.contains("*")).equals("*");
+      Node nan = new Node("+", new Node("ln", new Node("-", new Node("(", new Node("+", new Node("x"), new Node("2"))))), new Node("3"));
+      assert render(shrink(nan, (n) -> Double.isNaN(value(n, new double[3]))), new Random(0)).replace(" ", "").equals("ln(-1)");
+
+      Report report = run(22, 3_000, Math.max(2, Runtime.getRuntime().availableProcessors()), 60);
+      assert report.failures.isEmpty() : report;
+      assert report.cases.sum() >= 6_000 : report;
+    }
+  }
+
+  /**
+   * Evaluates many expressions at once on a ForkJoinPool. Nothing is shared between calls and parsed trees are
+   * never modified after parsing, so no locking is needed: a parsed Expression or a Formula can be used from
+   * any number of threads.
+   */
+  static class Engine implements AutoCloseable {
+    private final ForkJoinPool pool;
+    final FormulaCache cache;
+
+    Engine() {
+      this(Runtime.getRuntime().availableProcessors());
+    }
+    Engine(int parallelism) {
+      this(parallelism, 4096);
+    }
+    Engine(int parallelism, int cacheSize) {
+      pool = new ForkJoinPool(parallelism);
+      cache = new FormulaCache(cacheSize);
+    }
+
+    static Double evaluate(String source) {
+      Expression expr = new Expression().parse(new StringWrapper(source));
+      if (expr == null)
+        throw new ParseFailedException("Found no expression in \"" + source + "\".");
+      return expr.evaluate();
+    }
+
+    /**
+     * Values of all sources, in order, compiled through the cache. The first parse failure is thrown.
+     */
+    double[] evaluateAll(List<String> sources) {
+      double[] ret = new double[sources.size()];
+      pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, ret.length).parallel().forEach(i -> ret[i] = cache.get(sources.get(i)).eval())));
+      return ret;
+    }
+
+    /**
+     * Values of all sources, in order, with backend's arithmetic. These are parsed afresh rather than taken
+     * from the cache, whose formulas were optimized in double.
+     */
+    <N> List<N> evaluateAll(List<String> sources, Backend<N> backend) {
+      List<N> ret = new ArrayList<>(Collections.nCopies(sources.size(), null));
+      pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, ret.size()).parallel().forEach(i -> {
+        Expression expr = new Expression().parse(Tokens.lex(sources.get(i)));
+        if (expr == null)
+          throw new ParseFailedException("Found no expression in \"" + sources.get(i) + "\".");
+        ret.set(i, backend.evaluate(expr, List.of()));
+      })));
+      return ret;
+    }
+
+    /**
+     * Value of one large tree, with its independent subtrees evaluated in parallel.
+     */
+    double evaluateParallel(Evaluable root) {
+      return new ParallelEvaluator(root, ParallelEvaluator.THRESHOLD).evaluate(pool);
+    }
+
+    /**
+     * Value of formula for every row of bindings, in order.
+     */
+    double[] evaluateAll(Formula formula, double[][] rows) {
+      double[] ret = new double[rows.length];
+      pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, ret.length).parallel().forEach(i -> ret[i] = formula.eval(rows[i]))));
+      return ret;
+    }
+
+    public void close() {
+      pool.shutdown();
+    }
+
+    public static void test() {
+      int threads = 8;
+      List<String> sources = new ArrayList<>();
+      for (int i = 0; i < 2000; i++)
+        sources.add(Bench.random(1 + i % 60, i));
+      Double[] expected = new Double[sources.size()];
+      for (int i = 0; i < expected.length; i++)
+        expected[i] = evaluate(sources.get(i));
+
+      try (Engine engine = new Engine(threads)) {
+        for (int round = 0; round < 5; round++) {
+          double[] actual = engine.evaluateAll(sources);
+          for (int i = 0; i < expected.length; i++)
+            assert Double.compare(actual[i], expected[i]) == 0 : sources.get(i);
+        }
+
+        Formula formula = Main.compile("3*x^2+y/(x-1)");
+        double[][] rows = new double[10_000][];
+        for (int i = 0; i < rows.length; i++)
+          rows[i] = new double[]{i % 17, i % 5 - 2};
+        double[] values = engine.evaluateAll(formula, rows);
+        for (int i = 0; i < rows.length; i++)
+          assert Double.compare(values[i], formula.eval(rows[i])) == 0;
+
+        // Exact and fast arithmetic side by side in the same engine.
+        List<String> money = Arrays.asList("0.1+0.2", "19.99*3-0.5", "100/8");
+        assert engine.evaluateAll(money, Backend.RATIONAL).toString().equals("[3/10, 5947/100, 25/2]");
+        assert engine.evaluateAll(money, Backend.decimal(MathContext.DECIMAL64)).toString().equals("[0.3, 59.47, 12.5]");
+        assert engine.evaluateAll(money, Backend.DOUBLE).get(0) == 0.1 + 0.2;
+      }
+
+      // One parsed tree, evaluated and printed in both styles from every thread at once.
+      Expression shared = new Expression().parse(new StringWrapper(Bench.random(500, 42)));
+      double value = shared.evaluate();
+      String pretty = shared.toString(false);
+      String explicit = shared.toString(true);
+      List<Thread> workers = new ArrayList<>();
+      List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+      for (int t = 0; t < threads; t++) {
+        Thread worker = new Thread(() -> {
+          for (int i = 0; i < 200; i++) {
+            assert Double.compare(shared.evaluate(), value) == 0;
+            assert shared.toString(i % 2 == 0).equals(i % 2 == 0 ? explicit : pretty);
+          }
+        });
+        worker.setUncaughtExceptionHandler((th, e) -> failures.add(e));
+        workers.add(worker);
+        worker.start();
+      }
+      for (Thread worker : workers) {
+        try {
+          worker.join();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      assert failures.isEmpty() : failures;
+    }
+  }
+
+  /**
+   * Evaluates one large tree on a ForkJoinPool. Subtree weights (node counts) are computed once, up front: a
+   * subtree of at least threshold nodes that isn't its parent's heaviest operand becomes a task of its own,
+   * while the heaviest operand stays with the parent's task, so a long chain like 1+2+...+n isn't split into a
+   * task per link. Each task waits for the tasks below it and then walks the rest of its subtree as the
+   * sequential Evaluator does, so every operation sees the same operands and results match exactly.
+   */
+  static class ParallelEvaluator {
+    static final int THRESHOLD = 1 << 12;
+
+    private final Evaluable root;
+    // For the root and every subtree split off, the subtrees split off directly below it.
+    private final Map<Evaluable, List<Evaluable>> forks = new IdentityHashMap<>();
+
+    ParallelEvaluator(Evaluable root, int threshold) {
+      this.root = root;
+      PostOrder walk = new PostOrder(root);
+      int[] weights = new int[16];
+      List<List<Evaluable>> below = new ArrayList<>();
+      Evaluable[] nodes = new Evaluable[16];
+      int size = 0;
+      while (walk.next()) {
+        int n = walk.children;
+        size -= n;
+        int weight = 1;
+        int heaviest = size;
+        for (int k = size; k < size + n; k++) {
+          weight += weights[k];
+          if (weights[k] > weights[heaviest])
+            heaviest = k;
+        }
+        // Extends the heaviest operand's list, which is as long as any.
+        List<Evaluable> list = n == 0 ? new ArrayList<>() : below.get(heaviest);
+        for (int k = size; k < size + n; k++) {
+          if (k == heaviest)
+            continue;
+          if (weights[k] >= threshold) {
+            forks.put(nodes[k], below.get(k));
+            list.add(nodes[k]);
+          } else {
+            list.addAll(below.get(k));
+          }
+        }
+        below.subList(size, below.size()).clear();
+        if (size == weights.length) {
+          weights = Arrays.copyOf(weights, size * 2);
+          nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        weights[size] = weight;
+        nodes[size++] = walk.node;
+        below.add(list);
+      }
+      forks.put(root, below.get(0));
+    }
+
+    /**
+     * Tasks the tree is split into, the root's included.
+     */
+    int tasks() {
+      return forks.size();
+    }
+
+    double evaluate(ForkJoinPool pool) {
+      return pool.invoke(new Task(root));
+    }
+
+    private class Task extends RecursiveTask<Double> {
+      private static final long serialVersionUID = 1L;
+      private final Evaluable node;
+      Task(Evaluable node) {
+        this.node = node;
+      }
+      @Override
+      protected Double compute() {
+        List<Evaluable> children = forks.get(node);
+        if (children.isEmpty())
+          return Evaluator.evaluate(node);
+        List<Task> tasks = new ArrayList<>(children.size());
+        for (Evaluable child : children)
+          tasks.add(new Task(child));
+        invokeAll(tasks);
+        Map<Evaluable, Double> done = new IdentityHashMap<>();
+        for (Task task : tasks)
+          done.put(task.node, task.join());
+        return Evaluator.evaluate(node, done);
+      }
+    }
+
+    /**
+     * A full binary tree of about {@code nodes} nodes, as parenthesized text.
+     */
+    static String balanced(int nodes, long seed) {
+      Random random = new Random(seed);
+      String[] binary = {"+", "-", "*", "/"};
+      // Built bottom up: level 0 is numerals, each level above pairs up the one below.
+      List<String> level = new ArrayList<>();
+      for (int i = 0; i < (nodes + 1) / 2; i++)
+        level.add(random.nextInt(100) + "." + random.nextInt(100));
+      while (level.size() > 1) {
+        List<String> next = new ArrayList<>();
+        for (int i = 0; i + 1 < level.size(); i += 2)
+          next.add("(" + level.get(i) + binary[random.nextInt(binary.length)] + level.get(i + 1) + ")");
+        if (level.size() % 2 == 1)
+          next.add(level.get(level.size() - 1));
+        level = next;
+      }
+      return level.get(0);
+    }
+
+    public static void test() {
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+        String[] sources = {balanced(100_001, 1), balanced(5_000, 2), Bench.random(100_000, 3), "1+2", "x",
+            "-".repeat(50_000) + "(" + balanced(20_000, 4) + ")"};
+        for (String source : sources) {
+          Tokens tokens = Tokens.lex(source);
+          Evaluable expr = new Expression().parse(tokens);
+          Arrays.fill(tokens.variables.values, 1.5);
+          double expected = expr.evalAsDouble();
+          for (int threshold : new int[]{1, 64, THRESHOLD}) {
+            ParallelEvaluator parallel = new ParallelEvaluator(expr, threshold);
+            assert Double.compare(parallel.evaluate(pool), expected) == 0 : source.length() + " at " + threshold;
+          }
+        }
+        // Balanced trees split; a chain without heavy side branches doesn't.
+        assert new ParallelEvaluator(new Expression().parse(Tokens.lex(balanced(100_001, 1))), 1_000).tasks() > 50;
+        assert new ParallelEvaluator(new Expression().parse(Tokens.lex("1+2*3".repeat(20_000) + "+1")), 1_000).tasks() == 1;
+        // Shared subtrees of a Dag evaluate the same as copies.
+        Formula f = Main.compile("(" + balanced(3_000, 5) + ")*(" + balanced(3_000, 5) + ")");
+        assert Double.compare(new ParallelEvaluator(f.expr, 100).evaluate(pool), f.eval()) == 0;
+        try (Engine engine = new Engine(2)) {
+          assert Double.compare(engine.evaluateParallel(f.expr), f.eval()) == 0;
+        }
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Bounded LRU cache of compiled Formulas keyed by source text, normalized only when the exact text hasn't
+   * been seen. The cache is split into segments with a lock
+   * each, so concurrent lookups of different formulas don't wait on each other; a miss is parsed and compiled
+   * outside the lock. Capacity is split evenly between segments, and each evicts its least recently used entry.
+   */
+  static class FormulaCache {
+    // Formulas by normalized key, and the same formulas by the exact sources asked for, so that a repeated
+    // source is found without lexing it.
+    private final Segment[] segments;
+    private final Segment[] sources;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private class Segment extends LinkedHashMap<String, Formula> {
+      private static final long serialVersionUID = 1L;
+      final int capacity;
+      // Whether an eviction drops a formula, rather than one of the sources leading to it.
+      final boolean counted;
+      Segment(int capacity, boolean counted) {
+        super(16, 0.75f, true);
+        this.capacity = capacity;
+        this.counted = counted;
+      }
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Formula> eldest) {
+        if (size() <= capacity)
+          return false;
+        if (counted)
+          evictions.increment();
+        return true;
+      }
+    }
+
+    FormulaCache(int capacity) {
+      if (capacity < 1)
+        throw new IllegalArgumentException("Cache capacity must be positive, got " + capacity + ".");
+      int count = Integer.highestOneBit(Math.min(16, capacity));
+      segments = new Segment[count];
+      sources = new Segment[count];
+      for (int i = 0; i < count; i++) {
+        segments[i] = new Segment((capacity + count - 1) / count, true);
+        sources[i] = new Segment((capacity + count - 1) / count, false);
+      }
+    }
+
+    Formula get(String source) {
+      Segment alias = segment(sources, source);
+      Formula ret;
+      synchronized (alias) {
+        ret = alias.get(source);
+      }
+      if (ret != null) {
+        hits.increment();
+        return ret;
+      }
+      String key = normalize(source);
+      Segment segment = segment(segments, key);
+      synchronized (segment) {
+        ret = segment.get(key);
+      }
+      if (ret != null) {
+        hits.increment();
+      } else {
+        misses.increment();
+        ret = compile(source);
+        synchronized (segment) {
+          Formula raced = segment.putIfAbsent(key, ret);
+          if (raced != null)
+            ret = raced;
+        }
+      }
+      synchronized (alias) {
+        alias.put(source, ret);
+      }
+      return ret;
+    }
+
+    private static Segment segment(Segment[] segments, String key) {
+      int h = key.hashCode();
+      return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * The tokens the parser will see, one space apart: sources with the same key parse the same, whatever
+     * their spacing ("1 + 2" and "1+2"), while a space that changes the tokens ("1e -5") changes the key.
+     */
+    static String normalize(String source) {
+      Tokens tokens = Tokens.lex(source);
+      StringBuilder ret = new StringBuilder(source.length());
+      for (int k = 0; k < tokens.size && tokens.type[k] != Tokens.END; k++) {
+        if (k > 0)
+          ret.append(' ');
+        if (tokens.type[k] == Tokens.ERROR)
+          ret.append("\0").append(tokens.error); // never cached: compiling it fails
+        else
+          ret.append(source, tokens.offset[k], tokens.offset[k] + tokens.length[k]);
+      }
+      return ret.toString();
+    }
+
+    long hits() {
+      return hits.sum();
+    }
+    long misses() {
+      return misses.sum();
+    }
+    long evictions() {
+      return evictions.sum();
+    }
+    int size() {
+      int ret = 0;
+      for (Segment segment : segments)
+        synchronized (segment) {
+          ret += segment.size();
+        }
+      return ret;
+    }
+
+    public String toString() {
+      return "FormulaCache: " + size() + " formulas, " + hits() + " hits, " + misses() + " misses, " + evictions() + " evictions.";
+    }
+
+    public static void test() {
+      assert normalize(" 1 +\t2 ").equals("1 + 2") && normalize("1+2").equals("1 + 2");
+      assert normalize("2 pi").equals("2 pi") && normalize("2pi").equals("2 pi");
+      assert normalize("3 mod 4").equals("3 mod 4");
+      assert !normalize("1e -5").equals(normalize("1e-5")) && !normalize("2E+ 3").equals(normalize("2E+3"));
+
+      // A hit gives what compiling the source directly does, failures included.
+      FormulaCache spaced = new FormulaCache(16);
+      for (String s : new String[]{"1e-5", "1e -5", "1e- 5", "2E+3", "2E+ 3", "2 E+3", "1 . 5", "x y", "xy"}) {
+        for (int pass = 0; pass < 2; pass++) {
+          Object direct;
+          Object cached;
+          try {
+            direct = Main.compile(s).eval(2, 3);
+          } catch (ParseFailedException e) {
+            direct = e.getMessage();
+          }
+          try {
+            cached = spaced.get(s).eval(2, 3);
+          } catch (ParseFailedException e) {
+            cached = e.getMessage();
+          }
+          assert direct.equals(cached) : s + ": " + cached + " from the cache, " + direct + " compiled";
+        }
+      }
+      assert spaced.get("1e-5").eval() == 1e-5;
+
+      FormulaCache cache = new FormulaCache(4);
+      Formula f = cache.get("x * 2");
+      assert cache.get("x*2") == f;
+      assert cache.hits() == 1 && cache.misses() == 1;
+      // A source asked for before is a hit without lexing it again.
+      long bytes = Bench.allocatedBytes(() -> {
+        for (int i = 0; i < 100; i++)
+          assert cache.get("x*2") == f;
+      });
+      assert bytes < 1_000 : bytes + " bytes";
+      assert cache.hits() == 101 && cache.size() == 1;
+      try {
+        cache.get("2 3");
+        assert false;
+      } catch (ParseFailedException e) {
+        assert cache.get("23").eval() == 23;
+      }
+      for (int i = 0; i < 20; i++)
+        cache.get(i + "+1");
+      assert cache.size() <= 4 && cache.evictions() >= 18;
+
+      FormulaCache shared = new FormulaCache(1024);
+      try (Engine engine = new Engine(8)) {
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+          sources.add("x*" + (i % 50) + "+1");
+        engine.pool.invoke(ForkJoinTask.adapt(() -> sources.parallelStream().forEach(s -> {
+          assert shared.get(s).eval(2) == 2 * Integer.parseInt(s.substring(2, s.length() - 2)) + 1;
+        })));
+      }
+      assert shared.hits() + shared.misses() == 5000 && shared.size() == 50 && shared.evictions() == 0;
+    }
+  }
+
+  /**
+   * Batch mode: newline-delimited expressions in, one "value TAB error" line out per expression, in input order.
+   * Lines are evaluated in chunks on the Engine's workers through its cache; a line that fails gets NaN and the
+   * message in the error column instead of stopping the run. Files are memory-mapped, stdin is read through a
+   * channel.
+   */
+  static class Pipeline {
+    static final int CHUNK_LINES = 4096;
+    private static final int WINDOW = 1 << 26;
+
+    private final Engine engine;
+    private final Writer out;
+    private final ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private List<String> chunk = new ArrayList<>(CHUNK_LINES);
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    Pipeline(Engine engine, Writer out) {
+      this.engine = engine;
+      this.out = out;
+      this.maxPending = 2 * engine.pool.getParallelism();
+    }
+
+    static void run(String[] args) throws IOException {
+      try (Engine engine = new Engine()) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+        Pipeline pipeline = new Pipeline(engine, out);
+        if (args.length > 1) {
+          try (FileChannel file = FileChannel.open(Paths.get(args[1]), StandardOpenOption.READ)) {
+            pipeline.read(file);
+          }
+        } else {
+          pipeline.read(Channels.newChannel(System.in));
+        }
+        out.flush();
+      }
+    }
+
+    void read(FileChannel file) throws IOException {
+      long size = file.size();
+      for (long position = 0; position < size; position += WINDOW)
+        feed(file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position)));
+      finish();
+    }
+    void read(ReadableByteChannel in) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+      while (in.read(buffer) >= 0) {
+        buffer.flip();
+        feed(buffer);
+        buffer.clear();
+      }
+      finish();
+    }
+
+    private void feed(ByteBuffer bytes) throws IOException {
+      while (bytes.hasRemaining()) {
+        byte b = bytes.get();
+        if (b == '\n') {
+          endLine();
+          continue;
+        }
+        if (lineLength == line.length)
+          line = Arrays.copyOf(line, lineLength * 2);
+        line[lineLength++] = b;
+      }
+    }
+    private void endLine() throws IOException {
+      int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+      chunk.add(new String(line, 0, length, StandardCharsets.UTF_8));
+      lineLength = 0;
+      if (chunk.size() == CHUNK_LINES)
+        submit();
+    }
+    private void finish() throws IOException {
+      if (lineLength > 0)
+        endLine();
+      submit();
+      while (!pending.isEmpty())
+        out.write(pending.poll().join());
+    }
+
+    private void submit() throws IOException {
+      if (chunk.isEmpty())
+        return;
+      List<String> lines = chunk;
+      chunk = new ArrayList<>(CHUNK_LINES);
+      pending.add(CompletableFuture.supplyAsync(() -> evaluate(engine, lines), engine.pool));
+      // Write finished chunks in order, and don't read too far ahead of the slowest one.
+      while (pending.size() > maxPending || (!pending.isEmpty() && pending.peek().isDone()))
+        out.write(pending.poll().join());
+    }
+
+    /**
+     * One output line per source: the value and a tab, or NaN, a tab and what went wrong.
+     */
+    static String evaluate(Engine engine, List<String> lines) {
+      StringBuilder ret = new StringBuilder(lines.size() * 24);
+      for (String source : lines) {
+        try {
+          ret.append(engine.cache.get(source).eval()).append('\t');
+        } catch (RuntimeException e) {
+          ret.append(Double.NaN).append('\t').append(e.getClass().getSimpleName()).append(": ").append(e.getMessage());
+        }
+        ret.append('\n');
+      }
+      return ret.toString();
+    }
+
+    public static void test() {
+      StringBuilder input = new StringBuilder();
+      StringBuilder expected = new StringBuilder();
+      for (int i = 0; i < 3 * CHUNK_LINES + 5; i++) {
+        input.append(i % 100).append(" * 2 + 1").append(i % 2 == 0 ? "\r\n" : "\n");
+        expected.append((double) (i % 100 * 2 + 1)).append("\t\n");
+      }
+      input.append("2+\n\nx*2\n1/4");
+      try (Engine engine = new Engine(4)) {
+        StringWriter out = new StringWriter();
+        new Pipeline(engine, out).read(Channels.newChannel(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8))));
+        String[] lines = out.toString().split("\n", -1);
+        assert out.toString().startsWith(expected.toString());
+        int tail = 3 * CHUNK_LINES + 5;
+        assert lines[tail].startsWith("NaN\tParseFailedException: Missing operand after +");
+        assert lines[tail + 1].startsWith("NaN\tParseFailedException");
+        assert lines[tail + 2].startsWith("NaN\tIllegalArgumentException");
+        assert lines[tail + 3].equals("0.25\t");
+        assert lines.length == tail + 5 && lines[tail + 4].isEmpty();
+
+        Path file = Files.createTempFile("expressions", ".txt");
+        try {
+          Files.write(file, input.toString().getBytes(StandardCharsets.UTF_8));
+          StringWriter mapped = new StringWriter();
+          try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            new Pipeline(engine, mapped).read(channel);
+          }
+          assert mapped.toString().equals(out.toString());
+        } finally {
+          Files.delete(file);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Evaluates expressions over HTTP, run with "java Main --serve [port]". POST /eval takes either one JSON
+   * string or a JSON array of them (with a JSON content type), answering {"value": ...} or {"error": ...} for
+   * each; or newline-separated expressions in any other body, answered one line each as in --batch. Every
+   * request shares the Engine's FormulaCache.
+   */
+  static class Server implements AutoCloseable {
+    static final int MAX_BODY = 1 << 24;
+    static {
+      // Responses go out as headers then body; with Nagle's algorithm on, the body waits ~40 ms for a delayed ACK.
+      if (System.getProperty("sun.net.httpserver.nodelay") == null)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Engine engine;
+    private final HttpServer http;
+    private final ExecutorService executor;
+
+    Server(Engine engine, InetSocketAddress address) throws IOException {
+      this.engine = engine;
+      executor = executor();
+      http = HttpServer.create(address, 0);
+      http.setExecutor(executor);
+      http.createContext("/eval", this::handle);
+      http.start();
+    }
+
+    /**
+     * Virtual threads where the JDK has them (21 and later); otherwise a pool big enough that threads blocked
+     * reading slow request bodies don't hold up the rest.
+     */
+    private static ExecutorService executor() {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        return Executors.newFixedThreadPool(4 * Runtime.getRuntime().availableProcessors());
+      }
+    }
+
+    int port() {
+      return http.getAddress().getPort();
+    }
+
+    static void run(String[] args) throws IOException {
+      int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+      Engine engine = new Engine();
+      Server server = new Server(engine, new InetSocketAddress(port));
+      System.out.println("Listening on port " + server.port() + ".");
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        server.close();
+        engine.close();
+      }));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+      try (exchange) {
+        if (!exchange.getRequestMethod().equals("POST")) {
+          exchange.getResponseHeaders().set("Allow", "POST");
+          respond(exchange, 405, "text/plain", "Use POST.\n");
+          return;
+        }
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+        if (body.length > MAX_BODY) {
+          respond(exchange, 413, "text/plain", "Body is over " + MAX_BODY + " bytes.\n");
+          return;
+        }
+        String text = new String(body, StandardCharsets.UTF_8);
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (type == null || !type.startsWith("application/json")) {
+          List<String> lines = new ArrayList<>(Arrays.asList(text.split("\r?\n", -1)));
+          if (lines.get(lines.size() - 1).isEmpty())
+            lines.remove(lines.size() - 1);
+          respond(exchange, 200, "text/plain; charset=utf-8", Pipeline.evaluate(engine, lines));
+          return;
+        }
+        Object request;
+        try {
+          request = Json.parse(text);
+        } catch (IllegalArgumentException e) {
+          respond(exchange, 400, "application/json", "{\"error\":" + Json.quote(e.getMessage()) + "}");
+          return;
+        }
+        StringBuilder ret = new StringBuilder();
+        if (request instanceof String) {
+          result((String) request, ret);
+        } else {
+          ret.append('[');
+          for (Object source : (List<?>) request) {
+            if (ret.length() > 1)
+              ret.append(',');
+            result((String) source, ret);
+          }
+          ret.append(']');
+        }
+        respond(exchange, 200, "application/json", ret.toString());
+      }
+    }
+
+    private void result(String source, StringBuilder out) {
+      try {
+        double value = engine.cache.get(source).eval();
+        out.append("{\"value\":").append(Double.isFinite(value) ? Double.toString(value) : Json.quote(Double.toString(value))).append('}');
+      } catch (RuntimeException e) {
+        out.append("{\"error\":").append(Json.quote(e.getClass().getSimpleName() + ": " + e.getMessage())).append('}');
+      }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, String body) throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", type);
+      exchange.sendResponseHeaders(status, bytes.length);
+      exchange.getResponseBody().write(bytes);
+    }
+
+    public void close() {
+      http.stop(0);
+      executor.shutdown();
+    }
+
+    /**
+     * Sends requests from many client threads to a fresh Server on localhost for a while, then reports latency
+     * percentiles and throughput. Run with "java Main --load [seconds] [clients] [expressions per request]".
+     */
+    static String load(double seconds, int clients, int batch) throws IOException, InterruptedException {
+      try (Engine engine = new Engine(); Server server = new Server(engine, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(clients)).build();
+        URI uri = URI.create("http://localhost:" + server.port() + "/eval");
+        // A few hundred distinct formulas, so the cache sees both hits and misses.
+        List<String> formulas = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+          formulas.add(Bench.random(5 + i % 50, i));
+        Histogram nanos = new Histogram();
+        LongAdder failed = new LongAdder();
+        long until = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] threads = new Thread[clients];
+        for (int t = 0; t < clients; t++) {
+          Random random = new Random(t);
+          threads[t] = new Thread(() -> {
+            while (System.nanoTime() < until) {
+              StringBuilder body = new StringBuilder();
+              for (int i = 0; i < batch; i++)
+                body.append(formulas.get(random.nextInt(formulas.size()))).append('\n');
+              HttpRequest request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString(body.toString())).build();
+              long start = System.nanoTime();
+              try {
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200)
+                  failed.increment();
+              } catch (IOException e) {
+                failed.increment();
+              } catch (InterruptedException e) {
+                return;
+              }
+              nanos.record(System.nanoTime() - start);
+            }
+          });
+          threads[t].start();
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+          thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        ((ExecutorService) client.executor().get()).shutdown();
+        return String.format("%d requests of %d from %d clients: %.0f requests/s, p50 %.3f ms, p99 %.3f ms, %d failed, cache hits %d misses %d",
+            nanos.count(), batch, clients, nanos.count() / elapsed, nanos.percentile(0.5) / 1e6, nanos.percentile(0.99) / 1e6,
+            failed.sum(), engine.cache.hits(), engine.cache.misses());
+      }
+    }
+
+    public static void test() {
+      try (Engine engine = new Engine(2); Server server = new Server(engine, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+        HttpClient client = HttpClient.newHttpClient();
+        URI uri = URI.create("http://localhost:" + server.port() + "/eval");
+        String[][] cases = {
+            {"application/json", "\"1+2\"", "200", "{\"value\":3.0}"},
+            {"application/json", "[\"2*pi\", \"1+\", \"0/0\", \"\\u0031/4\"]", "200",
+                "[{\"value\":6.283185307179586},{\"error\":\"ParseFailedException: Missing operand after +.\"},{\"value\":\"NaN\"},{\"value\":0.25}]"},
+            {"application/json", "[]", "200", "[]"},
+            {"application/json", "[1]", "400", "{\"error\":\"Expected a string at 1.\"}"},
+            {"application/json; charset=utf-8", "\"x\"", "200", "{\"error\":\"IllegalArgumentException: Expected 1 values for [x] got 0 instead.\"}"},
+            {"text/plain", "1+2\n2^10\r\n)\n", "200", "3.0\t\n1024.0\t\nNaN\tParseFailedException: Found no expression in \")\".\n"},
+            {null, "", "200", ""},
+        };
+        for (String[] c : cases) {
+          HttpRequest.Builder request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString(c[1]));
+          if (c[0] != null)
+            request.header("Content-Type", c[0]);
+          HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+          assert response.statusCode() == Integer.parseInt(c[2]) && response.body().equals(c[3]) : c[1] + ": " + response.statusCode() + " " + response.body();
+        }
+        long hits = engine.cache.hits();
+        client.send(HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString("1 + 2")).build(), HttpResponse.BodyHandlers.ofString());
+        assert engine.cache.hits() == hits + 1;
+        assert client.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode() == 405;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Just enough JSON for Server: a string or an array of strings in, quoted strings out.
+   */
+  static class Json {
+    /**
+     * The String or List of Strings text holds.
+     */
+    static Object parse(String text) {
+      int[] at = {skip(text, 0)};
+      Object ret;
+      if (at[0] < text.length() && text.charAt(at[0]) == '[') {
+        List<String> list = new ArrayList<>();
+        at[0] = skip(text, at[0] + 1);
+        if (at[0] < text.length() && text.charAt(at[0]) == ']') {
+          at[0]++;
+        } else {
+          while (true) {
+            list.add(string(text, at));
+            at[0] = skip(text, at[0]);
+            if (at[0] < text.length() && text.charAt(at[0]) == ',') {
+              at[0] = skip(text, at[0] + 1);
+              continue;
+            }
+            if (at[0] < text.length() && text.charAt(at[0]) == ']') {
+              at[0]++;
+              break;
+            }
+            throw new IllegalArgumentException("Expected , or ] at " + at[0] + ".");
+          }
+        }
+        ret = list;
+      } else {
+        ret = string(text, at);
+      }
+      if (skip(text, at[0]) != text.length())
+        throw new IllegalArgumentException("Unexpected text after the value at " + at[0] + ".");
+      return ret;
+    }
+
+    private static int skip(String text, int i) {
+      while (i < text.length() && isWhitespace(text.charAt(i)))
+        i++;
+      return i;
+    }
+
+    // The string starting at at[0], which is left just past its closing quote.
+    private static String string(String text, int[] at) {
+      int i = at[0];
+      if (i >= text.length() || text.charAt(i) != '"')
+        throw new IllegalArgumentException("Expected a string at " + i + ".");
+      StringBuilder ret = new StringBuilder();
+      for (i++; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c == '"') {
+          at[0] = i + 1;
+          return ret.toString();
+        }
+        if (c != '\\') {
+          ret.append(c);
+          continue;
+        }
+        if (++i == text.length())
+          break;
+        switch (text.charAt(i)) {
+          case '"': ret.append('"'); break;
+          case '\\': ret.append('\\'); break;
+          case '/': ret.append('/'); break;
+          case 'b': ret.append('\b'); break;
+          case 'f': ret.append('\f'); break;
+          case 'n': ret.append('\n'); break;
+          case 'r': ret.append('\r'); break;
+          case 't': ret.append('\t'); break;
+          case 'u':
+            if (i + 4 >= text.length())
+              throw new IllegalArgumentException("Bad \\u escape at " + i + ".");
+            try {
+              ret.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+            } catch (NumberFormatException e) {
+              throw new IllegalArgumentException("Bad \\u escape at " + i + ".");
+            }
+            i += 4;
+            break;
+          default:
+            throw new IllegalArgumentException("Bad escape at " + i + ".");
+        }
+      }
+      throw new IllegalArgumentException("Unterminated string at " + at[0] + ".");
+    }
+
+    static String quote(String s) {
+      StringBuilder ret = new StringBuilder(s.length() + 2).append('"');
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == '"' || c == '\\')
+          ret.append('\\').append(c);
+        else if (c < 0x20)
+          ret.append(String.format("\\u%04x", (int) c));
+        else
+          ret.append(c);
       }
+      return ret.append('"').toString();
     }
+  }
 
+  /**
+   * An expression kept parsed while it is edited, for live evaluation on every keystroke. The span of every
+   * Grouping is remembered, so an edit re-lexes and re-parses only the innermost group around it, dropping the
+   * untouched groups inside it back in whole. A group that no longer parses on its own (an unbalanced paren, an
+   * error) hands the work to its parent, so failures are reported exactly as a full parse would report them.
+   * Each group caches its value until an edit inside it or a new variable value.
+   */
+  static class LiveExpression {
     /**
-     * Read more if possible. Returns true if successfully read another term into expression.
+     * A parenthesized group, or the whole text for the root: its offset from the parent's start, its length
+     * (parens included) and the groups directly inside it, in order. Sits between the Grouping and its inner
+     * expression to cache the value.
      */
-    public boolean readMore(StringWrapper input, int keepReading) {
-      Union ret = null;
+    private static class Span implements Evaluable {
+      int start;
+      int length;
+      Span parent;
+      Grouping grouping;
+      Evaluable inner;
+      double value;
+      boolean cached;
+      List<Span> children = new ArrayList<>();
+      // The variables directly inside, not in a child group.
+      List<Variable> variables = new ArrayList<>();
 
-      Evaluable tempEx = new Grouping().parse(input);
-      if (tempEx != null) {
-        if (PRINT_DEBUG)
-          System.out.println("Grouping found: " + tempEx.toString());
-        ret = wrap(tempEx);
+      public Evaluable parse(StringWrapper input) {
+        throw new IllegalArgumentException("Use LiveExpression to parse.");
+      }
+      public Evaluable parse(Tokens input) {
+        throw new IllegalArgumentException("Use LiveExpression to parse.");
+      }
+      public double evalAsDouble() {
+        if (!cached) {
+          value = inner.evalAsDouble();
+          cached = true;
+        }
+        return value;
+      }
+      public void print(StringBuilder out, boolean explicitParens) {
+        inner.print(out, explicitParens);
+      }
+      public String toString() {
+        return toString(false);
       }
+    }
 
+    private String text = "";
+    // Only the names the text uses; values given by set() are kept in bindings for when a name comes back.
+    private final Variables variables = new Variables();
+    private final Map<String, Double> bindings = new HashMap<>();
+    // For each variable, the groups holding it directly.
+    private final List<Set<Span>> users = new ArrayList<>();
+    // Names that may have lost their last use since the last prune().
+    private final Set<String> unused = new HashSet<>();
+    private final Span root = new Span();
+    private String error;
+    // Characters re-lexed by the last update, for tests and benchmarks.
+    int relexed;
 
-      if (ret == null) {
-        String substring = input.s.substring(input.i);
-        for (String t : Operator.tokens) {
-          if (substring.startsWith(t)) {
-            ret = wrap(t);
-            input.i += t.length();
-            if (PRINT_DEBUG)
-              System.out.println("Operator found: " + t + " in " + substring);
-            break;
-          } else {
-            //            if (PRINT_DEBUG)
-            //              System.out.println("Not " + t + " in " + substring);
+    LiveExpression(String source) {
+      try {
+        update(0, 0, source);
+      } catch (ParseFailedException e) {
+        // Kept in error; evaluate() reports it.
+      }
+    }
+
+    /**
+     * Replaces the {@code deletedLength} characters at {@code offset} with {@code inserted} and returns the new
+     * value. If the new text doesn't parse the edit is kept and ParseFailedException is thrown.
+     */
+    Double update(int offset, int deletedLength, String inserted) {
+      if (offset < 0 || deletedLength < 0 || offset + deletedLength > text.length())
+        throw new IndexOutOfBoundsException("Edit " + offset + "+" + deletedLength + " outside of 0.." + text.length() + ".");
+      text = text.substring(0, offset) + inserted + text.substring(offset + deletedLength);
+      int delta = inserted.length() - deletedLength;
+
+      // Innermost group containing the edit, its parens excluded.
+      Span span = root;
+      int at = 0;
+      while (true) {
+        int k = firstAtOrAfter(span.children, offset - at) - 1;
+        if (k < 0)
+          break;
+        Span child = span.children.get(k);
+        if (offset + deletedLength > at + child.start + child.length - 1)
+          break;
+        span = child;
+        at += child.start;
+      }
+
+      // Drop the groups the edit touches, move the ones after it, then grow every group on the way up.
+      int from = firstAtOrAfter(span.children, offset - at);
+      while (from > 0 && at + span.children.get(from - 1).start + span.children.get(from - 1).length > offset)
+        from--;
+      int to = firstAtOrAfter(span.children, offset + deletedLength - at);
+      span.children.subList(from, to).forEach(this::detach);
+      span.children.subList(from, to).clear();
+      for (int k = from; k < span.children.size(); k++)
+        span.children.get(k).start += delta;
+      for (Span s = span; s != null; s = s.parent) {
+        s.length += delta;
+        s.cached = false;
+        if (s.parent != null) {
+          List<Span> siblings = s.parent.children;
+          for (int k = firstAtOrAfter(siblings, s.start + 1); k < siblings.size(); k++)
+            siblings.get(k).start += delta;
+        }
+      }
+
+      relexed = 0;
+      Span failed = null;
+      while (true) {
+        try {
+          reparse(span, at, failed);
+          error = null;
+          prune();
+          return root.evaluate();
+        } catch (ParseFailedException e) {
+          if (span == root) {
+            detach(root);
+            root.inner = null;
+            root.children.clear();
+            error = e.getMessage();
+            prune();
+            throw e;
           }
         }
+        failed = span;
+        at -= span.start;
+        span = span.parent;
       }
+    }
 
-      if (ret == null) {
-        tempEx = new Constant().parse(input);
-        if (tempEx != null) {
-          if (PRINT_DEBUG)
-            System.out.println("Constant found: " + tempEx.toString());
-          ret = wrap(tempEx);
+    /**
+     * Re-parses the inside of span, which starts at {@code at}, reusing each child except {@code skip}.
+     * Throws ParseFailedException, leaving span as it was, if that doesn't parse on its own.
+     */
+    private void reparse(Span span, int at, Span skip) {
+      List<Span> reuse = new ArrayList<>(span.children);
+      reuse.remove(skip);
+      int[] spans = new int[2 * reuse.size()];
+      Evaluable[] parsed = new Evaluable[reuse.size()];
+      for (int k = 0; k < parsed.length; k++) {
+        Span child = reuse.get(k);
+        spans[2 * k] = at + child.start;
+        spans[2 * k + 1] = at + child.start + child.length;
+        parsed[k] = child.grouping;
+      }
+      int from = span == root ? 0 : at + 1;
+      int to = span == root ? text.length() : at + span.length - 1;
+      relexed += to - from;
+      Tokens tokens = Tokens.lex(text, from, to, variables, spans, parsed, Limits.DEFAULT);
+      Expression expr = new Expression().parse(tokens);
+      if (expr == null)
+        throw new ParseFailedException("Found no expression in \"" + text.substring(from, to) + "\".");
+      // The root may stop early, like any parse; a group has to use everything up to its ')'.
+      if (span != root && tokens.type() != Tokens.END)
+        throw new ParseFailedException("Unbalanced parentheses.");
+
+      // The consumed tokens give the new groups' spans, and the new Groupings come up in the same order.
+      List<Span> children = new ArrayList<>();
+      List<Span> opened = new ArrayList<>();
+      Deque<Span> stack = new ArrayDeque<>();
+      Deque<Integer> starts = new ArrayDeque<>();
+      // Per open paren, whether it holds a call's arguments, which get no span of their own.
+      Deque<Boolean> calls = new ArrayDeque<>();
+      stack.push(span);
+      starts.push(at);
+      for (int k = 0; k < tokens.i; k++) {
+        Span child;
+        if (tokens.type[k] == Tokens.OPEN) {
+          calls.push(tokens.symbol[k] == Tokens.CALL);
+          if (calls.peek())
+            continue;
+          child = new Span();
+          child.start = tokens.offset[k] - starts.peek();
+          child.parent = stack.peek();
+          opened.add(child);
+          stack.push(child);
+          starts.push(tokens.offset[k]);
+          continue;
+        }
+        if (tokens.type[k] == Tokens.CLOSE) {
+          if (calls.pop())
+            continue;
+          child = stack.pop();
+          child.length = tokens.offset[k] + 1 - starts.pop();
+        } else if (tokens.type[k] == Tokens.PARSED) {
+          child = reuse.set(tokens.symbol[k], null);
+          child.start = tokens.offset[k] - starts.peek();
+          child.parent = stack.peek();
+        } else {
+          continue;
+        }
+        (stack.peek() == span ? children : stack.peek().children).add(child);
+      }
+      // A root that stopped early leaves the groups after it unused.
+      for (Span child : reuse)
+        if (child != null)
+          detach(child);
+      if (skip != null)
+        detach(skip);
+      release(span);
+      // Each node comes with the group it is directly inside.
+      Deque<Evaluable> todo = new ArrayDeque<>();
+      Deque<Span> owners = new ArrayDeque<>();
+      todo.push(expr);
+      owners.push(span);
+      int next = 0;
+      while (!todo.isEmpty()) {
+        Evaluable e = todo.pop();
+        Span owner = owners.pop();
+        if (e instanceof Grouping && !(((Grouping) e).inner instanceof Span)) {
+          Span child = opened.get(next++);
+          child.grouping = (Grouping) e;
+          todo.push(((Grouping) e).inner);
+          owners.push(child);
+        } else if (e instanceof Operation) {
+          Evaluable[] operands = ((Operation) e).operands;
+          for (int k = operands.length - 1; k >= 0; k--) {
+            todo.push(operands[k]);
+            owners.push(owner);
+          }
+        } else if (e instanceof Expression) {
+          List<Evaluable> elements = ((Expression) e).elements;
+          for (int k = elements.size() - 1; k >= 0; k--) {
+            todo.push(elements.get(k));
+            owners.push(owner);
+          }
+        } else if (e instanceof Variable) {
+          owner.variables.add((Variable) e);
         }
       }
+      grow();
+      attach(span);
+      for (Span child : opened) {
+        child.inner = child.grouping.inner;
+        child.grouping.inner = child;
+        attach(child);
+      }
+      span.children = children;
+      span.inner = expr;
+      span.cached = false;
+    }
 
-      if (ret == null) {
-        tempEx = new Numeral().parse(input);
-        if (tempEx != null) {
-          if (PRINT_DEBUG)
-            System.out.println("Numeral found: " + tempEx.toString());
-          ret = wrap(tempEx);
+    private void attach(Span span) {
+      for (Variable v : span.variables)
+        users.get(v.index).add(span);
+    }
+
+    /**
+     * Forgets the variables directly inside span.
+     */
+    private void release(Span span) {
+      for (Variable v : span.variables) {
+        Set<Span> spans = users.get(v.index);
+        spans.remove(span);
+        if (spans.isEmpty())
+          unused.add(v.name);
+      }
+      span.variables = new ArrayList<>();
+    }
+
+    /**
+     * Forgets the variables inside span and all its groups, which are about to be dropped.
+     */
+    private void detach(Span span) {
+      Deque<Span> todo = new ArrayDeque<>();
+      todo.push(span);
+      while (!todo.isEmpty()) {
+        Span s = todo.pop();
+        release(s);
+        s.children.forEach(todo::push);
+      }
+    }
+
+    /**
+     * Gives the names parsing has added their bound value, or NaN.
+     */
+    private void grow() {
+      for (int k = users.size(); k < variables.names.size(); k++) {
+        String name = variables.names.get(k);
+        variables.values[k] = bindings.getOrDefault(name, Double.NaN);
+        users.add(new HashSet<>());
+        // A parse that failed may have added it.
+        unused.add(name);
+      }
+    }
+
+    /**
+     * Drops the variables the text no longer uses. The last variable moves into each freed index, so only its
+     * nodes are renumbered.
+     */
+    private void prune() {
+      grow();
+      for (String name : unused) {
+        int k = variables.find(name);
+        if (k < 0 || !users.get(k).isEmpty())
+          continue;
+        int last = users.size() - 1;
+        variables.remove(k);
+        if (k != last) {
+          for (Span span : users.get(last))
+            for (Variable v : span.variables)
+              if (v.index == last)
+                v.index = k;
+          users.set(k, users.get(last));
         }
+        users.remove(last);
       }
+      unused.clear();
+    }
 
-      if (ret == null) {
-        if (PRINT_DEBUG)
-          System.out.println("Nothing found. Leaving " + input);
-        return false;
+    /**
+     * Index of the first span starting at or after {@code start}.
+     */
+    private static int firstAtOrAfter(List<Span> spans, int start) {
+      int lo = 0;
+      int hi = spans.size();
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (spans.get(mid).start < start)
+          lo = mid + 1;
+        else
+          hi = mid;
       }
+      return lo;
+    }
 
-      elements.add(ret);
-      if (PRINT_DEBUG)
-        System.out.println("Items found so far: " + this.toString() + ". Leaving \"" + input+"\"");
-      while (keepReading-- > 0 && readMore(input, 0)) {}
-      return true;
+    Double evaluate() {
+      if (root.inner == null)
+        throw new ParseFailedException(error);
+      return root.evaluate();
     }
-    public Double evaluate() {
-      if (elements.isEmpty())
-        return null;
 
-      int numOps = 0;
-      int opIndex = -1;
-      for (int i = 0; i < elements.size(); i++)
-        if (elements.get(i) instanceof OpStrWrap) {
-          opIndex = i;
-          numOps++;
+    /**
+     * Sets a variable, whether or not the text uses it yet. Forgets the cached values of the groups using it
+     * and of their enclosing groups.
+     */
+    void set(String name, double value) {
+      bindings.put(name, value);
+      int index = variables.find(name);
+      if (index < 0)
+        return;
+      variables.values[index] = value;
+      // A group left uncached was either never evaluated or skipped by a conditional, so the cached groups
+      // around it don't depend on it.
+      for (Span span : users.get(index))
+        for (Span s = span; s != null && s.cached; s = s.parent)
+          s.cached = false;
+    }
+
+    String text() {
+      return text;
+    }
+    public String toString() {
+      return root.inner == null ? "" : root.inner.toString();
+    }
+
+    public static void test() {
+      LiveExpression live = new LiveExpression("1 + (2 * (3 + 4)) + (5)");
+      assert live.evaluate() == 20.0;
+      assert live.update(10, 1, "30") == 74.0 : live.text();
+      assert live.relexed == 6 : live.relexed;
+      assert live.toString().equals("1 + ( 2 * ( 30 + 4 ) ) + ( 5 )") : live;
+      // Breaking a paren makes the enclosing group re-parse.
+      try {
+        live.update(16, 1, "");
+        assert false;
+      } catch (ParseFailedException e) {
+        assert live.text().equals("1 + (2 * (30 + 4) + (5)");
+      }
+      assert live.update(16, 0, ")") == 74.0;
+      live.set("x", 2);
+      assert live.update(live.text().length(), 0, "*x") == 79.0 : live.text();
+      // A call's parentheses are not a group.
+      live = new LiveExpression("max((1), 2) + min(3, (4))");
+      assert live.evaluate() == 5.0;
+      assert live.update(5, 1, "9") == 12.0 : live.text();
+      assert live.update(22, 1, "0") == 9.0 : live.text();
+      assert live.toString().equals("max(( 9 ), 2) + min(3, ( 0 ))") : live;
+
+      // Typing a name leaves only the whole name, and deleting it leaves none; the value set earlier stays.
+      live = new LiveExpression("(x + 1) * (y + 2) + z");
+      live.set("x", 1);
+      live.set("y", 2);
+      live.set("z", 3);
+      assert live.evaluate() == 11.0;
+      live.update(live.text().length(), 0, " + r");
+      live.update(live.text().length(), 0, "a");
+      live.update(live.text().length(), 0, "te");
+      assert live.variables.names.equals(List.of("x", "y", "z", "rate")) : live.variables.names;
+      live.update(live.text().length() - 7, 7, "");
+      assert live.variables.names.equals(List.of("x", "y", "z")) : live.variables.names;
+      // Removing x moves z into its index.
+      assert live.update(1, 1, "4") == 23.0 : live.text();
+      assert live.variables.names.equals(List.of("z", "y")) : live.variables.names;
+      live.set("z", 10);
+      assert live.evaluate() == 30.0;
+      assert live.update(1, 1, "x") == 18.0 : live.text();
+      // Setting y leaves the group holding x cached.
+      assert live.root.children.get(0).cached && live.root.children.get(1).cached;
+      live.set("y", 0);
+      assert live.root.children.get(0).cached && !live.root.children.get(1).cached;
+      assert live.evaluate() == 14.0;
+      live.set("unused", 1);
+      assert live.root.children.get(0).cached && live.root.children.get(1).cached;
+      try {
+        live.update(live.text().length() - 1, 1, "");
+        assert false;
+      } catch (ParseFailedException e) {
+        assert live.variables.names.isEmpty() && live.users.isEmpty();
+      }
+      assert live.update(live.text().length(), 0, "z") == 14.0 : live.text();
+
+      // Random edits on a large expression agree with a parse from scratch, value, text and error alike.
+      String source = Bench.random(4_000, 12);
+      live = new LiveExpression(source);
+      Random random = new Random(12);
+      String alphabet = "0123456789.+-*/^() e,?:xy";
+      for (int n = 0; n < 3_000; n++) {
+        String text = live.text();
+        int offset = random.nextInt(text.length() + 1);
+        int deleted = random.nextInt(3) == 0 ? Math.min(random.nextInt(3), text.length() - offset) : 0;
+        String inserted = deleted > 0 && random.nextBoolean() ? "" : String.valueOf(alphabet.charAt(random.nextInt(alphabet.length())));
+        String edited = text.substring(0, offset) + inserted + text.substring(offset + deleted);
+        Object expected;
+        try {
+          expected = Engine.evaluate(edited);
+        } catch (ParseFailedException e) {
+          expected = e.getMessage();
+        }
+        Object actual;
+        try {
+          actual = live.update(offset, deleted, inserted);
+        } catch (ParseFailedException e) {
+          actual = e.getMessage();
+        }
+        assert expected.equals(actual) : edited + ": " + expected + " vs " + actual;
+        if (actual instanceof Double) {
+          Tokens tokens = Tokens.lex(edited);
+          assert live.toString().equals(new Expression().parse(tokens).toString()) : edited;
+          assert new HashSet<>(live.variables.names).equals(new HashSet<>(tokens.variables.names)) : edited + ": " + live.variables.names;
+        } else {
+          assert live.variables.names.isEmpty() : edited + ": " + live.variables.names;
         }
-      if (numOps > 0)
-        condense();
-      if (numOps == 0)
-        return ((ExWrap) elements.get(0)).wrapped.evaluate();
+        if (n % 10 == 9 && random.nextBoolean())
+          live = new LiveExpression(edited.length() > 40_000 ? source : edited);
+      }
+    }
+  }
+
+  /**
+   * An exact fraction, always in lowest terms with a positive denominator.
+   */
+  static final class Rational {
+    static final Rational ZERO = new Rational(BigInteger.ZERO, BigInteger.ONE);
+    static final Rational ONE = new Rational(BigInteger.ONE, BigInteger.ONE);
+    // Results above this many bits are refused rather than filling the heap, e.g. for 10^10^10.
+    static final int MAX_BITS = 1 << 20;
 
-      return this.evaluate();
+    final BigInteger numerator;
+    final BigInteger denominator;
+
+    private Rational(BigInteger numerator, BigInteger denominator) {
+      this.numerator = numerator;
+      this.denominator = denominator;
     }
-    private boolean condense() {
-      // Evaluate shit like "  + 3   -  + - 5    " or "+3-+-5"
-      //                    "((+(3)) - (+(-(5))))"
 
-      // leftmost of conflicts -> if can be biop, do biop
-      // if must be uniop do uniop.
+    static Rational of(BigInteger numerator, BigInteger denominator) {
+      if (denominator.signum() == 0)
+        throw new ArithmeticException("Division by zero.");
+      if (numerator.bitLength() > MAX_BITS || denominator.bitLength() > MAX_BITS)
+        throw new ArithmeticException("Result is too large for exact arithmetic.");
+      BigInteger gcd = numerator.gcd(denominator);
+      if (denominator.signum() < 0)
+        gcd = gcd.negate();
+      return new Rational(numerator.divide(gcd), denominator.divide(gcd));
+    }
+    static Rational of(BigDecimal value) {
+      if (Math.abs((long) value.scale()) > MAX_BITS / 4)
+        throw new ArithmeticException("Numeral " + value + " is too large for exact arithmetic.");
+      if (value.scale() <= 0)
+        return of(value.unscaledValue().multiply(BigInteger.TEN.pow(-value.scale())), BigInteger.ONE);
+      return of(value.unscaledValue(), BigInteger.TEN.pow(value.scale()));
+    }
+    static Rational of(double value) {
+      if (Double.isNaN(value) || Double.isInfinite(value))
+        throw new ArithmeticException(value + " is not a rational number.");
+      return of(new BigDecimal(value));
+    }
 
-      boolean wasCondensed = false;
-      while (true) {
+    Rational add(Rational o) {
+      return of(numerator.multiply(o.denominator).add(o.numerator.multiply(denominator)), denominator.multiply(o.denominator));
+    }
+    Rational subtract(Rational o) {
+      return add(o.negate());
+    }
+    Rational multiply(Rational o) {
+      return of(numerator.multiply(o.numerator), denominator.multiply(o.denominator));
+    }
+    Rational divide(Rational o) {
+      return of(numerator.multiply(o.denominator), denominator.multiply(o.numerator));
+    }
+    /**
+     * Remainder of division truncated toward zero, with the sign of this, like % on doubles.
+     */
+    Rational remainder(Rational o) {
+      Rational quotient = divide(o);
+      BigInteger truncated = quotient.numerator.divide(quotient.denominator);
+      return subtract(o.multiply(new Rational(truncated, BigInteger.ONE)));
+    }
+    Rational negate() {
+      return new Rational(numerator.negate(), denominator);
+    }
+    Rational abs() {
+      return numerator.signum() < 0 ? negate() : this;
+    }
+    int compareTo(Rational o) {
+      // Denominators are positive.
+      return numerator.multiply(o.denominator).compareTo(o.numerator.multiply(denominator));
+    }
+    Rational pow(Rational exponent) {
+      if (!exponent.denominator.equals(BigInteger.ONE))
+        throw new ArithmeticException("Exact powers need a whole exponent, got " + exponent + ".");
+      if (exponent.numerator.bitLength() > 31 || (long) Math.max(numerator.bitLength(), denominator.bitLength()) * exponent.numerator.abs().longValue() > MAX_BITS)
+        throw new ArithmeticException("Result is too large for exact arithmetic.");
+      int n = exponent.numerator.intValue();
+      Rational ret = of(numerator.pow(Math.abs(n)), denominator.pow(Math.abs(n)));
+      return n < 0 ? ONE.divide(ret) : ret;
+    }
 
-        // Find all ops
-        // Mark all precedences and parameters needed for the operator.
-        // Left most op in runs of ops are biops unless leading.
-        int numOps = 0;
-        List<Integer> opPositions = new ArrayList<>();
-        List<List<Operator>> possibleOps = new ArrayList<>();
-        for (int i = 0; i < elements.size(); i++)
-          if (!(elements.get(i) instanceof ExWrap)) {
-            numOps++;
-            opPositions.add(i);
-          }
-        if (numOps == 0)
-          return wasCondensed;
-        for (int i : opPositions) {
-          Union object = elements.get(i);
-          if (object instanceof OpWrap)
-            possibleOps.add(Collections.singletonList(((OpWrap) object).wrapped));
-          else {
-            String opToken = ((OpStrWrap)object).wrapped;
-            List<Operator> precedence = new ArrayList<>();
-            possibleOps.add(precedence);
-            for (Operator o : Operator.OPS)
-              if (o.token.equals(opToken))
-                precedence.add(o);
-          }
-        }
-        // If the first element is an biop/uniop conflict, remove the biop.
-        if (opPositions.get(0) == 0 && possibleOps.get(0).size() > 1) {
-          if (PRINT_DEBUG) System.out.println("First token is uniop");
-          possibleOps.get(0).removeIf(a -> a.parametersLeft != 0); // keep uniop == remove biop
-        }
-        for (int i = 0; i < opPositions.size(); i++) {
-          if (possibleOps.get(i).size() > 1) {
-            // first in a run is biop, remainder are uniop
-            int pos = opPositions.get(i);
-            if (i == 0 || opPositions.get(i - 1) != pos - 1) {
-              if (PRINT_DEBUG) System.out.println("First in run is biop");
-              possibleOps.get(i).removeIf(a -> a.parametersLeft == 0);
-            } else {
-              if (PRINT_DEBUG) System.out.println("Rest in run is uniop");
-              possibleOps.get(i).removeIf(a -> a.parametersLeft != 0);
-            }
-            assert possibleOps.get(i).size() == 1;
+    BigDecimal toBigDecimal(MathContext mc) {
+      return new BigDecimal(numerator).divide(new BigDecimal(denominator), mc);
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof Rational && numerator.equals(((Rational) o).numerator) && denominator.equals(((Rational) o).denominator);
+    }
+    public int hashCode() {
+      return numerator.hashCode() * 31 + denominator.hashCode();
+    }
+    public String toString() {
+      return denominator.equals(BigInteger.ONE) ? numerator.toString() : numerator + "/" + denominator;
+    }
+  }
+
+  /**
+   * How numbers are represented and what each operator does to them, so one parsed tree can be evaluated with
+   * raw doubles, rounded decimals or exact fractions. Operators a backend has no entry for are refused, never
+   * approximated. Numerals are taken at the exact value written; the optimizer's folding happens in double, so
+   * give evaluate() a tree straight from the parser.
+   */
+  static final class Backend<N> {
+    static final Backend<Double> DOUBLE = new Backend<>("double", (n) -> n.value, (c) -> c.value, (d) -> d);
+    static {
+      // Whatever is registered, through the operator's own primitive form.
+      DOUBLE.otherwise = (op, args) -> {
+        double[] a = new double[args.size()];
+        for (int k = 0; k < a.length; k++)
+          a[k] = args.get(k);
+        return op.applyAsDouble(a, 0, a.length);
+      };
+    }
+
+    static final Backend<Rational> RATIONAL = new Backend<>("rational", (n) -> Rational.of(n.decimal()), (c) -> {
+      throw new ArithmeticException(c + " is not a rational number.");
+    }, Rational::of);
+    static {
+      RATIONAL.unary.put(Operator.POS, (a) -> a);
+      RATIONAL.unary.put(Operator.NEG, Rational::negate);
+      RATIONAL.binary.put(Operator.ADD, Rational::add);
+      RATIONAL.binary.put(Operator.SUB, Rational::subtract);
+      RATIONAL.binary.put(Operator.MUL, Rational::multiply);
+      RATIONAL.binary.put(Operator.DIV, Rational::divide);
+      RATIONAL.binary.put(Operator.REM, Rational::remainder);
+      RATIONAL.binary.put(Operator.MOD, Rational::remainder);
+      RATIONAL.binary.put(Operator.POW, Rational::pow);
+      RATIONAL.unary.put(Operator.ABS, Rational::abs);
+      RATIONAL.binary.put(Operator.MIN, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+      RATIONAL.binary.put(Operator.MAX, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+    }
+
+    // Enough digits for any MathContext a decimal backend is likely to use.
+    private static final String PI = "3.14159265358979323846264338327950288419716939937510582097494459230781640628620899862803482534211706798";
+    private static final String E = "2.71828182845904523536028747135266249775724709369995957496696762772407663035354759457138217852516642742";
+
+    /**
+     * Decimal arithmetic where every result is rounded to mc; dividing with an unlimited mc works only where
+     * the quotient terminates.
+     */
+    static Backend<BigDecimal> decimal(MathContext mc) {
+      Backend<BigDecimal> ret = new Backend<>("decimal(" + mc + ")", (n) -> n.decimal().round(mc), (c) -> {
+        if (mc.getPrecision() == 0 || mc.getPrecision() > PI.length() - 2)
+          throw new ArithmeticException(c + " has no exact decimal value at " + mc + ".");
+        return new BigDecimal(c.str.equals("pi") ? PI : E).round(mc);
+      }, (d) -> new BigDecimal(d).round(mc));
+      ret.unary.put(Operator.POS, (a) -> a.round(mc));
+      ret.unary.put(Operator.NEG, (a) -> a.negate(mc));
+      ret.binary.put(Operator.ADD, (a, b) -> a.add(b, mc));
+      ret.binary.put(Operator.SUB, (a, b) -> a.subtract(b, mc));
+      ret.binary.put(Operator.MUL, (a, b) -> a.multiply(b, mc));
+      ret.binary.put(Operator.DIV, (a, b) -> a.divide(b, mc));
+      ret.binary.put(Operator.REM, (a, b) -> a.remainder(b, mc));
+      ret.binary.put(Operator.MOD, (a, b) -> a.remainder(b, mc));
+      ret.binary.put(Operator.POW, (a, b) -> {
+        try {
+          return a.pow(b.intValueExact(), mc);
+        } catch (ArithmeticException e) {
+          throw new ArithmeticException("Decimal powers need a whole exponent up to 999999999, got " + b + ".");
+        }
+      });
+      ret.unary.put(Operator.ABS, (a) -> a.abs(mc));
+      ret.binary.put(Operator.MIN, BigDecimal::min);
+      ret.binary.put(Operator.MAX, BigDecimal::max);
+      return ret;
+    }
+
+    final String name;
+    private final Function<Numeral, N> numeral;
+    private final Function<Constant, N> constant;
+    private final DoubleFunction<N> fromDouble;
+    private final Map<Operator, UnaryOperator<N>> unary = new IdentityHashMap<>();
+    private final Map<Operator, BinaryOperator<N>> binary = new IdentityHashMap<>();
+    // For operators in neither table, given the operands; null to refuse them.
+    private BiFunction<Operator, List<N>, N> otherwise;
+
+    private Backend(String name, Function<Numeral, N> numeral, Function<Constant, N> constant, DoubleFunction<N> fromDouble) {
+      this.name = name;
+      this.numeral = numeral;
+      this.constant = constant;
+      this.fromDouble = fromDouble;
+    }
+
+    /**
+     * The value of root with bindings.get(i) as the value of variable i.
+     */
+    N evaluate(Evaluable root, List<N> bindings) {
+      PostOrder walk = new PostOrder(root);
+      List<N> values = new ArrayList<>();
+      while (walk.next()) {
+        Evaluable e = walk.node;
+        if (e instanceof Operation) {
+          Operator op = ((Operation) e).op;
+          int size = values.size();
+          UnaryOperator<N> u = walk.children == 1 ? unary.get(op) : null;
+          BinaryOperator<N> b = walk.children == 2 ? binary.get(op) : null;
+          if (u != null) {
+            values.set(size - 1, u.apply(values.get(size - 1)));
+          } else if (b != null) {
+            values.set(size - 2, b.apply(values.get(size - 2), values.remove(size - 1)));
+          } else if (otherwise != null) {
+            List<N> operands = values.subList(size - walk.children, size);
+            N value = otherwise.apply(op, operands);
+            operands.clear();
+            values.add(value);
+          } else {
+            throw new UnsupportedOperationException("The " + name + " backend has no operator " + op.token + ".");
           }
+        } else if (walk.children == 0) {
+          values.add(leaf(e, bindings));
+        }
+      }
+      return values.get(0);
+    }
+
+    private N leaf(Evaluable e, List<N> bindings) {
+      if (e instanceof Numeral)
+        return numeral.apply((Numeral) e);
+      if (e instanceof Constant)
+        return constant.apply((Constant) e);
+      if (e instanceof Variable) {
+        int index = ((Variable) e).index;
+        if (index >= bindings.size())
+          throw new IllegalArgumentException("No value for variable " + ((Variable) e).name + ".");
+        return bindings.get(index);
+      }
+      return fromDouble.apply(e.evalAsDouble());
+    }
+
+    public String toString() {
+      return name;
+    }
+
+    public static void test() {
+      for (int i = 0; i < 200; i++) {
+        String s = Bench.random(1 + i % 40, i);
+        Evaluable expr = new Expression().parse(new StringWrapper(s));
+        assert Double.compare(DOUBLE.evaluate(expr, List.of()), expr.evaluate()) == 0 : s;
+      }
+
+      Evaluable tenth = new Expression().parse(new StringWrapper("0.1+0.2"));
+      assert tenth.evaluate() != 0.3;
+      assert Backend.decimal(MathContext.DECIMAL64).evaluate(tenth, List.of()).compareTo(new BigDecimal("0.3")) == 0;
+      assert RATIONAL.evaluate(tenth, List.of()).equals(Rational.of(BigInteger.valueOf(3), BigInteger.TEN));
+
+      String[][] exact = {{"1/3*3", "1"}, {"0.1+0.2-0.3", "0"}, {"2^(0-2)", "1/4"}, {"7%3", "1"}, {"-7 mod 3", "-1"},
+          {"-7.5 % 2", "-3/2"}, {"(1/3)^3", "1/27"}, {"1e-3", "1/1000"}, {"2.50*4", "10"}, {"1/3+1/6", "1/2"}};
+      for (String[] c : exact)
+        assert RATIONAL.evaluate(new Expression().parse(new StringWrapper(c[0])), List.of()).toString().equals(c[1]) : c[0];
+
+      Backend<BigDecimal> decimal = Backend.decimal(MathContext.DECIMAL32);
+      assert decimal.evaluate(new Expression().parse(new StringWrapper("1/3")), List.of()).toString().equals("0.3333333");
+      assert decimal.evaluate(new Expression().parse(new StringWrapper("2*pi")), List.of()).toString().equals("6.283186");
+      assert decimal.evaluate(new Expression().parse(new StringWrapper("1.10^2")), List.of()).toString().equals("1.2100");
+
+      Tokens tokens = Tokens.lex("price*qty - discount");
+      Evaluable invoice = new Expression().parse(tokens);
+      assert RATIONAL.evaluate(invoice, List.of(Rational.of(new BigDecimal("19.99")), Rational.of(3), Rational.of(0.5)))
+          .equals(Rational.of(new BigDecimal("59.47")));
+
+      String[][] refused = {{"ln2", "UnsupportedOperationException"}, {"pi", "ArithmeticException"}, {"1/0", "ArithmeticException"},
+          {"2^0.5", "ArithmeticException"}, {"10^10^10", "ArithmeticException"}, {"1e99999999999", "ArithmeticException"}};
+      for (String[] c : refused) {
+        try {
+          RATIONAL.evaluate(new Expression().parse(new StringWrapper(c[0])), List.of());
+          assert false : c[0];
+        } catch (RuntimeException e) {
+          assert e.getClass().getSimpleName().equals(c[1]) : c[0] + ": " + e;
         }
-        List<Operator> ops = new ArrayList<>(possibleOps.size());
-        for (int i =0; i<possibleOps.size(); i++) {
-          Operator op = possibleOps.get(i).get(0);
-          ops.add(op);
-          elements.set(opPositions.get(i),wrap(op));
+      }
+    }
+  }
+
+  /**
+   * Where compiling and evaluating formulas report what they did, through Main.metrics. NOOP, the default,
+   * ignores everything; with it in place eval() costs one extra field read.
+   */
+  interface Metrics {
+    Metrics NOOP = new Metrics() {};
+
+    /**
+     * source compiled in nanos: tokens lexed, and tree nodes as parsed and as finally kept after optimizing
+     * and sharing subtrees.
+     */
+    default void compiled(String source, int tokens, int nodesParsed, int nodesKept, long nanos) {}
+    default void failed(String source, ParseFailedException e) {}
+    default void evaluated(long nanos) {}
+  }
+
+  /**
+   * Counts of long values in buckets of equal relative width, like HdrHistogram: values below 2^SUB_BITS have
+   * a bucket each, larger ones share one with values within 1/2^(SUB_BITS - 1) of them. Recording is a few
+   * shifts and one atomic increment, from any number of threads.
+   */
+  static class Histogram {
+    private static final int SUB_BITS = 8;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    private final LongAdder total = new LongAdder();
+
+    private static int index(long value) {
+      if (value < 2 * HALF)
+        return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+      return 2 * HALF + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+    // The largest value that lands in bucket i.
+    private static long highest(int i) {
+      if (i < 2 * HALF)
+        return i;
+      int shift = (i - 2 * HALF) / HALF + 1;
+      long lowest = (long) (HALF + (i - 2 * HALF) % HALF) << shift;
+      return lowest + (1L << shift) - 1;
+    }
+
+    void record(long value) {
+      counts.incrementAndGet(index(Math.max(value, 0)));
+      total.increment();
+    }
+
+    long count() {
+      return total.sum();
+    }
+
+    /**
+     * The value at or below which the given fraction of recorded values fall, to the histogram's precision;
+     * 0 if nothing was recorded.
+     */
+    long percentile(double fraction) {
+      long count = count();
+      long rank = Math.max(1, (long) Math.ceil(fraction * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length() && count > 0; i++) {
+        seen += counts.get(i);
+        if (seen >= rank)
+          return highest(i);
+      }
+      return 0;
+    }
+
+    public String toString() {
+      return "p50 " + percentile(0.5) + ", p99 " + percentile(0.99) + ", p99.9 " + percentile(0.999) + ", max " + percentile(1) + " of " + count();
+    }
+
+    public static void test() {
+      Histogram h = new Histogram();
+      assert h.percentile(0.5) == 0;
+      for (long v = 1; v <= 100_000; v++)
+        h.record(v);
+      for (double p : new double[]{0.01, 0.5, 0.9, 0.99, 1}) {
+        long exact = (long) (p * 100_000);
+        assert h.percentile(p) >= exact && h.percentile(p) <= exact + exact / 64 + 1 : p + ": " + h.percentile(p);
+      }
+      for (int i = 0; i < 2 * HALF + 20 * HALF; i++)
+        assert index(highest(i)) == i && index(highest(i) + 1) == i + 1 : i;
+      h.record(Long.MAX_VALUE);
+      assert h.percentile(1) == Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * What MetricsRecorder shows over JMX, as "Main:type=Metrics" once registered.
+   */
+  public interface MetricsMXBean {
+    long getCompiled();
+    long getFailed();
+    long getEvaluated();
+    long getTokens();
+    long getNodesParsed();
+    long getNodesKept();
+    long getCompileP50Nanos();
+    long getCompileP99Nanos();
+    long getEvaluateP50Nanos();
+    long getEvaluateP99Nanos();
+    long getEvaluateMaxNanos();
+    String getSlowestCompile();
+    Map<String, Long> getFailuresByMessage();
+  }
+
+  /**
+   * Metrics that keep counts, latency histograms and the slowest formula compiled, to find pathological
+   * formulas in a running process.
+   */
+  static class MetricsRecorder implements Metrics, MetricsMXBean {
+    // Distinct failure messages kept apart; messages quoting their input would otherwise grow without bound.
+    static final int MAX_MESSAGES = 256;
+    static final String OTHER = "(other)";
+
+    final Histogram compileNanos = new Histogram();
+    final Histogram evaluateNanos = new Histogram();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder nodesParsed = new LongAdder();
+    private final LongAdder nodesKept = new LongAdder();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private volatile long slowestNanos = -1;
+    private volatile String slowest = "";
+
+    public void compiled(String source, int tokens, int nodesParsed, int nodesKept, long nanos) {
+      compileNanos.record(nanos);
+      this.tokens.add(tokens);
+      this.nodesParsed.add(nodesParsed);
+      this.nodesKept.add(nodesKept);
+      if (nanos > slowestNanos) {
+        synchronized (this) {
+          if (nanos > slowestNanos) {
+            slowestNanos = nanos;
+            slowest = source.length() > 200 ? source.substring(0, 200) + "..." : source;
+          }
         }
-        if (PRINT_DEBUG) System.out.println("Condensing: "+this);
+      }
+    }
+    public void failed(String source, ParseFailedException e) {
+      failed.increment();
+      String key = String.valueOf(e.getMessage());
+      LongAdder count = failures.get(key);
+      if (count == null)
+        count = failures.size() < MAX_MESSAGES ? failures.computeIfAbsent(key, (k) -> new LongAdder()) : failures.computeIfAbsent(OTHER, (k) -> new LongAdder());
+      count.increment();
+    }
+    public void evaluated(long nanos) {
+      evaluateNanos.record(nanos);
+    }
+
+    /**
+     * Makes this visible to JMX clients such as jconsole.
+     */
+    void register() {
+      try {
+        java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(this, new javax.management.ObjectName("Main:type=Metrics"));
+      } catch (javax.management.JMException e) {
+        throw new IllegalStateException("Could not register metrics: " + e, e);
+      }
+    }
+
+    public long getCompiled() {
+      return compileNanos.count();
+    }
+    public long getFailed() {
+      return failed.sum();
+    }
+    public long getEvaluated() {
+      return evaluateNanos.count();
+    }
+    public long getTokens() {
+      return tokens.sum();
+    }
+    public long getNodesParsed() {
+      return nodesParsed.sum();
+    }
+    public long getNodesKept() {
+      return nodesKept.sum();
+    }
+    public long getCompileP50Nanos() {
+      return compileNanos.percentile(0.5);
+    }
+    public long getCompileP99Nanos() {
+      return compileNanos.percentile(0.99);
+    }
+    public long getEvaluateP50Nanos() {
+      return evaluateNanos.percentile(0.5);
+    }
+    public long getEvaluateP99Nanos() {
+      return evaluateNanos.percentile(0.99);
+    }
+    public long getEvaluateMaxNanos() {
+      return evaluateNanos.percentile(1);
+    }
+    public String getSlowestCompile() {
+      return slowestNanos < 0 ? "" : slowestNanos + " ns: " + slowest;
+    }
+    public Map<String, Long> getFailuresByMessage() {
+      Map<String, Long> ret = new TreeMap<>();
+      failures.forEach((message, count) -> ret.put(message, count.sum()));
+      return ret;
+    }
 
-        int maxPrecedence = -1;
-        int firstOp = -1;
-        for (int i = 0; i < ops.size(); i++) {
-          int newVal = Math.abs(ops.get(i).precedence);
-          if (newVal >= maxPrecedence) {
-            if (maxPrecedence != newVal)
-              firstOp = i;
-            maxPrecedence = newVal;
-            if (ops.get(i).precedence < 0)
-              firstOp = i;
+    public String toString() {
+      return "Compiled " + getCompiled() + " (" + compileNanos + " ns), failed " + getFailed() + ", evaluated "
+          + getEvaluated() + " (" + evaluateNanos + " ns).";
+    }
+
+    public static void test() {
+      MetricsRecorder recorder = new MetricsRecorder();
+      Metrics before = Main.metrics;
+      Main.metrics = recorder;
+      try {
+        Formula f = Main.compile("3*x^2+y");
+        for (int i = 0; i < 1000; i++)
+          f.eval(i, 1);
+        Main.compile("2*2*2");
+        for (String s : new String[]{"1+", "1+", "2*", ""}) {
+          try {
+            Main.compile(s);
+            assert false : s;
+          } catch (ParseFailedException e) {
+            // counted
           }
         }
-        int pos = opPositions.get(firstOp);
-        List<Union> toRemove = elements.subList(pos - ops.get(firstOp).parametersLeft, pos + ops.get(firstOp).parametersRight + 1);
-        ArrayList<Union> elems = new ArrayList<>(toRemove);
-        toRemove.clear();
-        elements.add(pos - ops.get(firstOp).parametersLeft, new ExWrap(new Operation(ops.get(firstOp), elems)));
+        assert recorder.getCompiled() == 2 && recorder.getEvaluated() == 1000 && recorder.getFailed() == 4 : recorder;
+        assert recorder.getTokens() == 7 + 5 : recorder.getTokens();
+        // Parsed trees count their Expression too.
+        assert recorder.getNodesParsed() == 8 + 6 && recorder.getNodesKept() == 7 + 1 : recorder.getNodesParsed() + " " + recorder.getNodesKept();
+        assert recorder.getEvaluateP50Nanos() <= recorder.getEvaluateP99Nanos() && recorder.getEvaluateP99Nanos() <= recorder.getEvaluateMaxNanos();
+        assert recorder.getSlowestCompile().endsWith(": 3*x^2+y") || recorder.getSlowestCompile().endsWith(": 2*2*2");
+        Map<String, Long> failures = recorder.getFailuresByMessage();
+        assert failures.get("Missing operand after +.") == 2 && failures.get("Missing operand after *.") == 1 && failures.size() == 3 : failures;
 
-        wasCondensed = true;
+        for (int i = 0; i < MAX_MESSAGES + 10; i++)
+          recorder.failed("", new ParseFailedException("Message " + i));
+        assert recorder.getFailuresByMessage().size() == MAX_MESSAGES + 1 && recorder.getFailuresByMessage().get(OTHER) > 0;
+
+        javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+        javax.management.ObjectName name = new javax.management.ObjectName("Main:type=Metrics");
+        recorder.register();
+        try {
+          assert server.getAttribute(name, "Evaluated").equals(1000L);
+          assert server.getAttribute(name, "FailuresByMessage") instanceof javax.management.openmbean.TabularData;
+        } finally {
+          server.unregisterMBean(name);
+        }
+      } catch (javax.management.JMException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        Main.metrics = before;
       }
     }
+  }
+
+  /**
+   * A formula parsed and compiled once, then evaluated for as many sets of variable values as needed.
+   */
+  public static class Formula {
+    final Evaluable expr;
+    final Variables variables;
+    final Compiled compiled;
+
+    Formula(Evaluable expr, Variables variables, Compiled compiled) {
+      this.expr = expr;
+      this.variables = variables;
+      this.compiled = compiled;
+    }
+
+    /**
+     * Names of the variables, in the order eval expects their values.
+     */
+    public List<String> variables() {
+      return Collections.unmodifiableList(variables.names);
+    }
+    public double eval(double... bindings) {
+      if (bindings.length < variables.names.size())
+        throw new IllegalArgumentException("Expected " + variables.names.size() + " values for " + variables.names + " got " + bindings.length + " instead.");
+      Metrics m = metrics;
+      if (m == Metrics.NOOP)
+        return compiled.eval(bindings);
+      long start = System.nanoTime();
+      double ret = compiled.eval(bindings);
+      m.evaluated(System.nanoTime() - start);
+      return ret;
+    }
+    /**
+     * Evaluates every row at once: columns[v][row] holds the value of variable v, results go to out[row].
+     */
+    public void evaluateBatch(double[][] columns, double[] out) {
+      Batch.evaluate(expr, variables, columns, out);
+    }
+    /**
+     * A copy of this formula that recomputes only what a changed variable affects; see Incremental.
+     */
+    public Incremental incremental() {
+      return new Incremental(expr, variables);
+    }
+    public DoubleUnaryOperator asUnary() {
+      if (variables.names.size() > 1)
+        throw new IllegalArgumentException("Formula has more than one variable: " + variables.names);
+      return compiled::eval;
+    }
+    public DoubleBinaryOperator asBinary() {
+      if (variables.names.size() > 2)
+        throw new IllegalArgumentException("Formula has more than two variables: " + variables.names);
+      return compiled::eval;
+    }
     public String toString() {
-      StringBuilder ret = new StringBuilder();
-      boolean first = true;
-      for (Union e : elements) {
-        if (!first)
-          ret.append(", ");
-        first = false;
-        if (e instanceof OpStrWrap)
-          ret.append('"').append(((OpStrWrap) e).wrapped).append("\"");
-        else if (e instanceof ExWrap)
-          ret.append(((ExWrap) e).wrapped.toString());
-        else if (e instanceof OpWrap)
-          ret.append(((OpWrap) e).wrapped);
+      return expr.toString();
+    }
+  }
+
+  public static Formula compile(String source) {
+    return compile(source, Limits.DEFAULT);
+  }
+  public static Formula compile(String source, Limits limits) {
+    Metrics m = metrics;
+    long start = m == Metrics.NOOP ? 0 : System.nanoTime();
+    try {
+      Tokens tokens = Tokens.lex(source, limits);
+      Expression parsed = new Expression().parse(tokens);
+      if (parsed == null)
+        throw new ParseFailedException("Found no expression in \"" + source + "\".");
+      // The parse stops at the first thing it can't use, which for a whole formula is a mistake.
+      if (tokens.type() == Tokens.ERROR)
+        throw new ParseFailedException(tokens.error);
+      if (parsed.elements.size() > 1 || tokens.type() != Tokens.END) {
+        String rest = parsed.elements.size() > 1 ? parsed.elements.get(1).toString() : source.substring(tokens.offset[tokens.i], tokens.offset[tokens.i] + tokens.length[tokens.i]);
+        throw new ParseFailedException("Unexpected " + rest + " after the expression in \"" + source + "\".");
       }
-      return ret.toString();
+      Dag dag = new Dag(new Optimizer().optimize(parsed));
+      if (PRINT_DEBUG)
+        System.out.println(dag);
+      Formula ret = new Formula(dag.root, tokens.variables, Compiler.compile(dag.root, tokens.variables));
+      if (m != Metrics.NOOP)
+        m.compiled(source, tokens.size - 1, Optimizer.count(parsed), dag.size(), System.nanoTime() - start);
+      return ret;
+    } catch (ParseFailedException e) {
+      m.failed(source, e);
+      throw e;
     }
   }
 
@@ -584,17 +6719,67 @@ public class Main {
     return (c != null && (c == ' ' || c == '\t' || c == '\n' || c == '\r'));
   }
 
-  public static void main(String[] args) {
+  /**
+   * Every test; run with "java -ea Main --test".
+   */
+  static void test() {
+    Numeral.test();
+    Expression.test();
+    Arena.test();
+    Operator.test();
+    Compiler.test();
+    Postfix.test();
+    Batch.test();
+    Optimizer.test();
+    Dag.test();
+    Incremental.test();
+    Backend.test();
+    Histogram.test();
+    MetricsRecorder.test();
+    Engine.test();
+    ParallelEvaluator.test();
+    FormulaCache.test();
+    Pipeline.test();
+    LiveExpression.test();
+    Server.test();
+    Fuzz.test();
+    System.out.println("Tests finished" + (Main.class.desiredAssertionStatus() ? "." : ", but assertions are disabled (-ea)."));
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length > 0 && args[0].equals("--batch")) {
+      Pipeline.run(args);
+      return;
+    }
+    if (args.length > 0 && args[0].equals("--serve")) {
+      Server.run(args);
+      return;
+    }
+    if (args.length > 0 && args[0].equals("--load")) {
+      try {
+        System.out.println(Server.load(args.length > 1 ? Double.parseDouble(args[1]) : 5, args.length > 2 ? Integer.parseInt(args[2]) : 16,
+            args.length > 3 ? Integer.parseInt(args[3]) : 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    if (args.length > 0 && args[0].equals("--fuzz")) {
+      Fuzz.main(args);
+      return;
+    }
+    if (args.length > 0 && args[0].equals("--test")) {
+      test();
+      return;
+    }
     Numeral.test();
     Scanner input = new Scanner(System.in);
 
     System.out.print("Enter an expression to parse: ");
-    Evaluable expr = new Expression().parse(new StringWrapper(input.next()));
-    System.out.println("Tokenized String: " + expr);
-    expr.evaluate(); // force cleanup of all internal expressions.
-    EXPLICIT_PARENS = true;
-    System.out.println("Parsed String: " + expr);
-    EXPLICIT_PARENS = false;
+    String line = input.nextLine();
+    System.out.println("Tokenized String: " + Tokens.lex(line).describe());
+    Evaluable expr = new Expression().parse(new StringWrapper(line));
+    System.out.println("Parsed String: " + expr.toString(true));
     System.out.println("Pretty String: " + expr);
     System.out.println("Evaluates to: " + expr.evaluate());
     System.out.println();